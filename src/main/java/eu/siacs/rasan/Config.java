@@ -72,10 +72,20 @@ public final class Config {
     public static final int PING_TIMEOUT = 15;
     public static final int SOCKET_TIMEOUT = 15;
     public static final int CONNECT_TIMEOUT = 90;
+    public static final int CONNECTION_ATTEMPT_DELAY = 250; // milliseconds before racing the next resolver result
     public static final int POST_CONNECTIVITY_CHANGE_PING_INTERVAL = 30;
     public static final int CONNECT_DISCO_TIMEOUT = 20;
+    public static final int CAPS_CACHE_SIZE = 256; // entity capabilities kept in memory by hash and ver
     public static final int MINI_GRACE_PERIOD = 750;
 
+    public static final int STANZA_WRITE_BATCH_SIZE = 16 * 1024; // roughly one TLS record
+    public static final int FILE_TRANSFER_BUFFER_SIZE = 64 * 1024; // bytes read, encrypted and written at once when transferring files
+    public static final int IBB_WINDOW_SIZE = 8; // in-band bytestream blocks sent ahead of their acknowledgement
+
+    public static final int MESSAGE_WRITE_BATCH_SIZE = 200; // max message writes per transaction
+    public static final int MESSAGE_WRITE_BATCH_DELAY = 250; // max milliseconds a message write waits for its transaction
+    public static final int OMEMO_SESSION_WRITE_DELAY = 500; // max milliseconds an OMEMO session write waits before it is persisted
+
     public static final boolean XEP_0392 = true; //enables XEP-0392 v0.6.0
 
     public static final int AVATAR_SIZE = 192;
@@ -85,6 +95,8 @@ public final class Config {
     public static final int IMAGE_SIZE = 1920;
     public static final Bitmap.CompressFormat IMAGE_FORMAT = Bitmap.CompressFormat.JPEG;
     public static final int IMAGE_QUALITY = 75;
+    public static final long BITMAP_DISK_CACHE_SIZE = 32 * 1024 * 1024; // bytes of thumbnails and avatars kept on disk across restarts
+    public static final int BITMAP_DISK_CACHE_QUALITY = 90;
 
     public static final int MESSAGE_MERGE_WINDOW = 20;
 
@@ -95,6 +107,7 @@ public final class Config {
     public static final int REFRESH_UI_INTERVAL = 500;
 
     public static final int MAX_DISPLAY_MESSAGE_CHARS = 4096;
+    public static final int MESSAGE_RENDER_CACHE_SIZE = 512 * 1024; // chars of rendered message bodies kept per conversation view
     public static final int MAX_STORAGE_MESSAGE_CHARS = 2 * 1024 * 1024; //2MB
 
     public static final long MILLISECONDS_IN_DAY = 24 * 60 * 60 * 1000;
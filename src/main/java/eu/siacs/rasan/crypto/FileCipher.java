@@ -0,0 +1,306 @@
+package eu.siacs.rasan.crypto;
+
+import org.bouncycastle.crypto.modes.gcm.GCMMultiplier;
+import org.bouncycastle.crypto.modes.gcm.Tables64kGCMMultiplier;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import eu.siacs.rasan.Config;
+
+/**
+ * AES-GCM streams for file transfers that produce the same ciphertext and authentication tag as
+ * BouncyCastle's {@code GCMBlockCipher} with a 128 bit tag, including for the 16 byte IVs that
+ * older clients use.
+ * <p>
+ * The platform provider's AES/GCM buffers the entire message until the tag is computed, which
+ * rules it out for large files. These streams instead run the key stream through the provider's
+ * AES/CTR, which uses the AES instructions of the CPU, and compute GHASH on the side. Like
+ * BouncyCastle's cipher streams, decrypted data is released before the tag has been checked; the
+ * check happens when the stream is closed.
+ */
+public final class FileCipher {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int TAG_LENGTH = 16;
+
+    private FileCipher() {
+
+    }
+
+    /**
+     * @return a stream that reads the encrypted content of the given stream followed by the tag
+     */
+    public static InputStream encrypt(final InputStream plaintext, final byte[] key, final byte[] iv) throws GeneralSecurityException {
+        return new EncryptingInputStream(plaintext, new Gcm(key, iv));
+    }
+
+    /**
+     * @return a stream that accepts ciphertext followed by the tag and writes the decrypted content
+     * to the given stream. Closing it fails if the tag does not match.
+     */
+    public static OutputStream decrypt(final OutputStream plaintext, final byte[] key, final byte[] iv) throws GeneralSecurityException {
+        return new DecryptingOutputStream(plaintext, new Gcm(key, iv));
+    }
+
+    private static class Gcm {
+
+        private final SecretKeySpec key;
+        private final Cipher ctr;
+        private final GCMMultiplier multiplier = new Tables64kGCMMultiplier();
+        private final byte[] encryptedJ0;
+        private final byte[] wrappedCounter;
+        private final byte[] hash = new byte[BLOCK_SIZE];
+        private final byte[] partialBlock = new byte[BLOCK_SIZE];
+        private int partialBlockLength = 0;
+        private long length = 0;
+        private long wrapOffset;
+
+        private Gcm(final byte[] key, final byte[] iv) throws GeneralSecurityException {
+            this.key = new SecretKeySpec(key, "AES");
+            final Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+            ecb.init(Cipher.ENCRYPT_MODE, this.key);
+            multiplier.init(ecb.doFinal(new byte[BLOCK_SIZE]));
+            final byte[] j0 = new byte[BLOCK_SIZE];
+            if (iv.length == 12) {
+                System.arraycopy(iv, 0, j0, 0, iv.length);
+                j0[BLOCK_SIZE - 1] = 1;
+            } else {
+                for (int i = 0; i < iv.length; i += BLOCK_SIZE) {
+                    xorBlock(j0, iv, i, Math.min(BLOCK_SIZE, iv.length - i));
+                    multiplier.multiplyH(j0);
+                }
+                final byte[] lengths = new byte[BLOCK_SIZE];
+                putLong(lengths, 8, iv.length * 8L);
+                xorBlock(j0, lengths, 0, BLOCK_SIZE);
+                multiplier.multiplyH(j0);
+            }
+            this.encryptedJ0 = ecb.doFinal(j0);
+            // GCM only increments the low 32 bits of the counter while CTR carries into the rest
+            final byte[] counter = j0.clone();
+            final long low = (getInt(counter, 12) & 0xffffffffL) + 1;
+            putInt(counter, 12, (int) low);
+            this.wrapOffset = ((1L << 32) - (low & 0xffffffffL)) * BLOCK_SIZE;
+            this.wrappedCounter = counter.clone();
+            putInt(this.wrappedCounter, 12, 0);
+            this.ctr = Cipher.getInstance("AES/CTR/NoPadding");
+            this.ctr.init(Cipher.ENCRYPT_MODE, this.key, new IvParameterSpec(counter));
+        }
+
+        private void update(final byte[] input, final int offset, final int count, final byte[] output, final boolean encrypt) throws GeneralSecurityException {
+            int processed = 0;
+            while (processed < count) {
+                final int chunk = (int) Math.min(count - processed, wrapOffset - length);
+                if (!encrypt) {
+                    ghash(input, offset + processed, chunk);
+                }
+                if (ctr.update(input, offset + processed, chunk, output, processed) != chunk) {
+                    throw new GeneralSecurityException("counter mode did not return all data");
+                }
+                if (encrypt) {
+                    ghash(output, processed, chunk);
+                }
+                processed += chunk;
+                length += chunk;
+                if (length == wrapOffset) {
+                    ctr.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(wrappedCounter));
+                    wrapOffset = Long.MAX_VALUE;
+                }
+            }
+        }
+
+        private void ghash(final byte[] ciphertext, int offset, int count) {
+            if (partialBlockLength > 0) {
+                final int fill = Math.min(count, BLOCK_SIZE - partialBlockLength);
+                System.arraycopy(ciphertext, offset, partialBlock, partialBlockLength, fill);
+                partialBlockLength += fill;
+                offset += fill;
+                count -= fill;
+                if (partialBlockLength < BLOCK_SIZE) {
+                    return;
+                }
+                xorBlock(hash, partialBlock, 0, BLOCK_SIZE);
+                multiplier.multiplyH(hash);
+                partialBlockLength = 0;
+            }
+            while (count >= BLOCK_SIZE) {
+                xorBlock(hash, ciphertext, offset, BLOCK_SIZE);
+                multiplier.multiplyH(hash);
+                offset += BLOCK_SIZE;
+                count -= BLOCK_SIZE;
+            }
+            System.arraycopy(ciphertext, offset, partialBlock, 0, count);
+            partialBlockLength = count;
+        }
+
+        private byte[] tag() {
+            if (partialBlockLength > 0) {
+                xorBlock(hash, partialBlock, 0, partialBlockLength);
+                multiplier.multiplyH(hash);
+                partialBlockLength = 0;
+            }
+            final byte[] lengths = new byte[BLOCK_SIZE];
+            putLong(lengths, 8, length * 8);
+            xorBlock(hash, lengths, 0, BLOCK_SIZE);
+            multiplier.multiplyH(hash);
+            final byte[] tag = new byte[TAG_LENGTH];
+            for (int i = 0; i < TAG_LENGTH; ++i) {
+                tag[i] = (byte) (hash[i] ^ encryptedJ0[i]);
+            }
+            return tag;
+        }
+
+        private static void xorBlock(final byte[] block, final byte[] input, final int offset, final int count) {
+            for (int i = 0; i < count; ++i) {
+                block[i] ^= input[offset + i];
+            }
+        }
+
+        private static int getInt(final byte[] bytes, final int offset) {
+            return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+        }
+
+        private static void putInt(final byte[] bytes, final int offset, final int value) {
+            bytes[offset] = (byte) (value >>> 24);
+            bytes[offset + 1] = (byte) (value >>> 16);
+            bytes[offset + 2] = (byte) (value >>> 8);
+            bytes[offset + 3] = (byte) value;
+        }
+
+        private static void putLong(final byte[] bytes, final int offset, final long value) {
+            putInt(bytes, offset, (int) (value >>> 32));
+            putInt(bytes, offset + 4, (int) value);
+        }
+    }
+
+    private static class EncryptingInputStream extends InputStream {
+
+        private final InputStream plaintext;
+        private final Gcm gcm;
+        private final byte[] buffer = new byte[Config.FILE_TRANSFER_BUFFER_SIZE];
+        private final byte[] single = new byte[1];
+        private byte[] tag = null;
+        private int tagOffset = 0;
+
+        private EncryptingInputStream(final InputStream plaintext, final Gcm gcm) {
+            this.plaintext = plaintext;
+            this.gcm = gcm;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (tag == null) {
+                final int count = plaintext.read(buffer, 0, Math.min(len, buffer.length));
+                if (count > 0) {
+                    try {
+                        gcm.update(buffer, 0, count, buffer, true);
+                    } catch (final GeneralSecurityException e) {
+                        throw new IOException(e);
+                    }
+                    System.arraycopy(buffer, 0, b, off, count);
+                    return count;
+                } else if (count == 0) {
+                    return 0;
+                }
+                tag = gcm.tag();
+            }
+            if (tagOffset == tag.length) {
+                return -1;
+            }
+            final int count = Math.min(len, tag.length - tagOffset);
+            System.arraycopy(tag, tagOffset, b, off, count);
+            tagOffset += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            plaintext.close();
+        }
+    }
+
+    private static class DecryptingOutputStream extends FilterOutputStream {
+
+        private final Gcm gcm;
+        private final byte[] buffer = new byte[Config.FILE_TRANSFER_BUFFER_SIZE];
+        // the most recent bytes, which are the tag if nothing else follows
+        private final byte[] tail = new byte[TAG_LENGTH];
+        private int tailLength = 0;
+        private boolean closed = false;
+
+        private DecryptingOutputStream(final OutputStream plaintext, final Gcm gcm) {
+            super(plaintext);
+            this.gcm = gcm;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (tailLength + len <= TAG_LENGTH) {
+                System.arraycopy(b, off, tail, tailLength, len);
+                tailLength += len;
+                return;
+            }
+            final int release = tailLength + len - TAG_LENGTH;
+            final int fromTail = Math.min(release, tailLength);
+            decrypt(tail, 0, fromTail);
+            System.arraycopy(tail, fromTail, tail, 0, tailLength - fromTail);
+            tailLength -= fromTail;
+            final int fromInput = release - fromTail;
+            decrypt(b, off, fromInput);
+            System.arraycopy(b, off + fromInput, tail, tailLength, len - fromInput);
+            tailLength += len - fromInput;
+        }
+
+        private void decrypt(final byte[] b, final int off, final int len) throws IOException {
+            int processed = 0;
+            while (processed < len) {
+                final int chunk = Math.min(len - processed, buffer.length);
+                try {
+                    gcm.update(b, off + processed, chunk, buffer, false);
+                } catch (final GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+                out.write(buffer, 0, chunk);
+                processed += chunk;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            final boolean valid = tailLength == TAG_LENGTH && MessageDigest.isEqual(gcm.tag(), tail);
+            try {
+                out.flush();
+            } finally {
+                out.close();
+            }
+            if (!valid) {
+                throw new IOException("mac check in GCM failed");
+            }
+        }
+    }
+}
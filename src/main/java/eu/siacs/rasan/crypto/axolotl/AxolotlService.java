@@ -54,6 +54,7 @@ import eu.siacs.rasan.entities.Message;
 import eu.siacs.rasan.parser.IqParser;
 import eu.siacs.rasan.services.XmppConnectionService;
 import eu.siacs.rasan.utils.CryptoHelper;
+import eu.siacs.rasan.utils.FanOut;
 import eu.siacs.rasan.utils.SerialSingleThreadExecutor;
 import eu.siacs.rasan.xml.Element;
 import eu.siacs.rasan.xml.Namespace;
@@ -82,6 +83,9 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 
     private static final int NUM_KEYS_TO_PUBLISH = 100;
     private static final int publishTriesThreshold = 3;
+    private static final int KEY_PARALLELISM = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int KEY_PARALLEL_THRESHOLD = 4;
+    private static final FanOut<XmppAxolotlMessage.KeyRequest, XmppAxolotlSession.AxolotlKey> KEY_FAN_OUT = new FanOut<>("OmemoKeys", KEY_PARALLELISM, KEY_PARALLEL_THRESHOLD, XmppAxolotlMessage.KeyRequest::build);
 
     private final Account account;
     private final XmppConnectionService mXmppConnectionService;
@@ -278,9 +282,14 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 
     public void destroy() {
         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": destroying old axolotl service. no longer in use");
+        axolotlStore.discardSessions();
         mXmppConnectionService.databaseBackend.wipeAxolotlDb(account);
     }
 
+    public void flushSessions() {
+        axolotlStore.flushSessions();
+    }
+
     public AxolotlService makeNew() {
         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": make new axolotl service");
         return new AxolotlService(this.account, this.mXmppConnectionService);
@@ -1153,12 +1162,10 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         if (remoteSessions.isEmpty() && !acceptEmpty) {
             return false;
         }
-        for (XmppAxolotlSession session : remoteSessions) {
-            axolotlMessage.addDevice(session);
-        }
-        for (XmppAxolotlSession session : ownSessions) {
-            axolotlMessage.addDevice(session);
-        }
+        final List<XmppAxolotlSession> sessions = new ArrayList<>(remoteSessions.size() + ownSessions.size());
+        sessions.addAll(remoteSessions);
+        sessions.addAll(ownSessions);
+        axolotlMessage.addDevices(sessions, KEY_FAN_OUT);
 
         return true;
     }
@@ -1174,9 +1181,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
             return false;
         }
         sessions.addAll(findOwnSessions());
-        for (XmppAxolotlSession session : sessions) {
-            axolotlMessage.addDevice(session);
-        }
+        axolotlMessage.addDevices(sessions, KEY_FAN_OUT);
         return true;
     }
 
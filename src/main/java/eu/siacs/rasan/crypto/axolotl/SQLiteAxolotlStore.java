@@ -15,10 +15,16 @@ import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.util.KeyHelper;
 
+import java.io.IOException;
 import java.security.cert.X509Certificate;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import eu.siacs.rasan.Config;
 import eu.siacs.rasan.entities.Account;
@@ -48,6 +54,11 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	public static final String JSONKEY_CURRENT_PREKEY_ID = "axolotl_cur_prekey_id";
 
 	private static final int NUM_TRUSTS_TO_CACHE = 100;
+	private static final int NUM_SESSIONS_TO_CACHE = 500;
+	private static final int NUM_IDENTITIES_TO_CACHE = 100;
+	private static final byte[] NO_SESSION = new byte[0];
+
+	private static final ScheduledExecutorService SESSION_WRITE_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
 
 	private final Account account;
 	private final XmppConnectionService mXmppConnectionService;
@@ -66,6 +77,34 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 				}
 			};
 
+	/**
+	 * Serialized session records by address. {@link #NO_SESSION} marks addresses that are known to
+	 * have no session.
+	 */
+	private final LruCache<SignalProtocolAddress, byte[]> sessionCache =
+			new LruCache<SignalProtocolAddress, byte[]>(NUM_SESSIONS_TO_CACHE) {
+				@Override
+				protected byte[] create(SignalProtocolAddress address) {
+					final byte[] session = mXmppConnectionService.databaseBackend.loadSerializedSession(account, address);
+					return session == null ? NO_SESSION : session;
+				}
+			};
+
+	/**
+	 * Session writes that have not been persisted yet. Only the latest write per device is kept.
+	 * A value of {@link #NO_SESSION} is a pending delete.
+	 */
+	private final LinkedHashMap<SignalProtocolAddress, byte[]> pendingSessionWrites = new LinkedHashMap<>();
+	private final Object sessionWriteLock = new Object();
+
+	private final LruCache<String, Set<IdentityKey>> identityKeyCache =
+			new LruCache<String, Set<IdentityKey>>(NUM_IDENTITIES_TO_CACHE) {
+				@Override
+				protected Set<IdentityKey> create(String name) {
+					return mXmppConnectionService.databaseBackend.loadIdentityKeys(account, name);
+				}
+			};
+
 	private static IdentityKeyPair generateIdentityKeyPair() {
 		Log.i(Config.LOGTAG, AxolotlService.LOGPREFIX + " : " + "Generating axolotl IdentityKeyPair...");
 		ECKeyPair identityKeyPairKeys = Curve.generateKeyPair();
@@ -143,8 +182,10 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	}
 
 	public void regenerate() {
+		discardSessions();
 		mXmppConnectionService.databaseBackend.wipeAxolotlDb(account);
 		trustCache.evictAll();
+		identityKeyCache.evictAll();
 		account.setKey(JSONKEY_CURRENT_PREKEY_ID, Integer.toString(0));
 		identityKeyPair = loadIdentityKeyPair();
 		localRegistrationId = loadRegistrationId(true);
@@ -189,7 +230,12 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
-		if (!mXmppConnectionService.databaseBackend.loadIdentityKeys(account, address.getName()).contains(identityKey)) {
+		final Set<IdentityKey> identityKeys = identityKeyCache.get(address.getName());
+		final boolean known;
+		synchronized (identityKeys) {
+			known = identityKeys.contains(identityKey);
+		}
+		if (!known) {
 			String fingerprint = CryptoHelper.bytesToHex(identityKey.getPublicKey().serialize());
 			FingerprintStatus status = getFingerprintStatus(fingerprint);
 			if (status == null) {
@@ -203,6 +249,9 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 				status = status.toActive();
 			}
 			mXmppConnectionService.databaseBackend.storeIdentityKey(account, address.getName(), identityKey, status);
+			synchronized (identityKeys) {
+				identityKeys.add(identityKey);
+			}
 			trustCache.remove(fingerprint);
 		}
 		return true;
@@ -270,8 +319,25 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public SessionRecord loadSession(SignalProtocolAddress address) {
-		SessionRecord session = mXmppConnectionService.databaseBackend.loadSession(this.account, address);
-		return (session != null) ? session : new SessionRecord();
+		final byte[] session = getSerializedSession(address);
+		if (session == NO_SESSION) {
+			return new SessionRecord();
+		}
+		try {
+			return new SessionRecord(session);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private byte[] getSerializedSession(SignalProtocolAddress address) {
+		synchronized (pendingSessionWrites) {
+			final byte[] pending = pendingSessionWrites.get(address);
+			if (pending != null) {
+				return pending;
+			}
+		}
+		return sessionCache.get(address);
 	}
 
 	/**
@@ -282,23 +348,28 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public List<Integer> getSubDeviceSessions(String name) {
+		flushSessions();
 		return mXmppConnectionService.databaseBackend.getSubDeviceSessions(account,
 				new SignalProtocolAddress(name, 0));
 	}
 
 
 	public List<String> getKnownAddresses() {
+		flushSessions();
 		return mXmppConnectionService.databaseBackend.getKnownSignalAddresses(account);
 	}
 	/**
 	 * Commit to storage the {@link SessionRecord} for a given recipientId + deviceId tuple.
+	 * <p/>
+	 * The record is cached right away and persisted shortly after. Repeated stores for the same
+	 * device are coalesced into one write.
 	 *
 	 * @param address the address of the remote client.
 	 * @param record  the current SessionRecord for the remote client.
 	 */
 	@Override
 	public void storeSession(SignalProtocolAddress address, SessionRecord record) {
-		mXmppConnectionService.databaseBackend.storeSession(account, address, record);
+		queueSessionWrite(address, record.serialize());
 	}
 
 	/**
@@ -309,7 +380,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public boolean containsSession(SignalProtocolAddress address) {
-		return mXmppConnectionService.databaseBackend.containsSession(account, address);
+		return getSerializedSession(address) != NO_SESSION;
 	}
 
 	/**
@@ -319,7 +390,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public void deleteSession(SignalProtocolAddress address) {
-		mXmppConnectionService.databaseBackend.deleteSession(account, address);
+		queueSessionWrite(address, NO_SESSION);
 	}
 
 	/**
@@ -329,9 +400,66 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public void deleteAllSessions(String name) {
-		SignalProtocolAddress address = new SignalProtocolAddress(name, 0);
-		mXmppConnectionService.databaseBackend.deleteAllSessions(account,
-				address);
+		flushSessions();
+		synchronized (sessionWriteLock) {
+			for (SignalProtocolAddress address : sessionCache.snapshot().keySet()) {
+				if (address.getName().equals(name)) {
+					sessionCache.remove(address);
+				}
+			}
+			SignalProtocolAddress address = new SignalProtocolAddress(name, 0);
+			mXmppConnectionService.databaseBackend.deleteAllSessions(account,
+					address);
+		}
+	}
+
+	private void queueSessionWrite(SignalProtocolAddress address, byte[] session) {
+		synchronized (pendingSessionWrites) {
+			sessionCache.put(address, session);
+			final boolean schedule = pendingSessionWrites.isEmpty();
+			pendingSessionWrites.put(address, session);
+			if (schedule) {
+				SESSION_WRITE_EXECUTOR.schedule(this::flushSessions, Config.OMEMO_SESSION_WRITE_DELAY, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Persists all pending session writes in one transaction.
+	 * <p/>
+	 * Writes are persisted while holding the session write lock, which is also held while sessions
+	 * are wiped or deleted in bulk. This prevents a write that has just been taken off the
+	 * queue from being committed after such a delete.
+	 */
+	public void flushSessions() {
+		synchronized (sessionWriteLock) {
+			final Map<SignalProtocolAddress, byte[]> writes;
+			synchronized (pendingSessionWrites) {
+				if (pendingSessionWrites.isEmpty()) {
+					return;
+				}
+				writes = new LinkedHashMap<>(pendingSessionWrites);
+			}
+			mXmppConnectionService.databaseBackend.storeSessions(account, writes);
+			synchronized (pendingSessionWrites) {
+				for (Map.Entry<SignalProtocolAddress, byte[]> write : writes.entrySet()) {
+					pendingSessionWrites.remove(write.getKey(), write.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops all cached and pending session writes. Used before the sessions of the account are
+	 * wiped from the database.
+	 */
+	public void discardSessions() {
+		synchronized (sessionWriteLock) {
+			synchronized (pendingSessionWrites) {
+				pendingSessionWrites.clear();
+			}
+			sessionCache.evictAll();
+		}
 	}
 
 	// --------------------------------------
@@ -9,6 +9,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.crypto.BadPaddingException;
@@ -22,6 +23,7 @@ import javax.crypto.spec.SecretKeySpec;
 
 import eu.siacs.rasan.Config;
 import eu.siacs.rasan.utils.Compatibility;
+import eu.siacs.rasan.utils.FanOut;
 import eu.siacs.rasan.xml.Element;
 import eu.siacs.rasan.xmpp.Jid;
 
@@ -180,17 +182,48 @@ public class XmppAxolotlMessage {
     }
 
     void addDevice(XmppAxolotlSession session, boolean ignoreSessionTrust) {
-        XmppAxolotlSession.AxolotlKey key;
-        if (authtagPlusInnerKey != null) {
-            key = session.processSending(authtagPlusInnerKey, ignoreSessionTrust);
-        } else {
-            key = session.processSending(innerKey, ignoreSessionTrust);
-        }
+        XmppAxolotlSession.AxolotlKey key = session.processSending(getKeyMaterial(), ignoreSessionTrust);
         if (key != null) {
             keys.add(key);
         }
     }
 
+    /**
+     * Adds the keys for all sessions, building them concurrently with the given fan out. Keys are
+     * added in the iteration order of the sessions.
+     */
+    void addDevices(Collection<XmppAxolotlSession> sessions, FanOut<KeyRequest, XmppAxolotlSession.AxolotlKey> fanOut) {
+        final byte[] keyMaterial = getKeyMaterial();
+        final List<KeyRequest> requests = new ArrayList<>(sessions.size());
+        for (XmppAxolotlSession session : sessions) {
+            requests.add(new KeyRequest(session, keyMaterial));
+        }
+        for (XmppAxolotlSession.AxolotlKey key : fanOut.apply(requests)) {
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+    }
+
+    private byte[] getKeyMaterial() {
+        return authtagPlusInnerKey != null ? authtagPlusInnerKey : innerKey;
+    }
+
+    static class KeyRequest {
+
+        private final XmppAxolotlSession session;
+        private final byte[] keyMaterial;
+
+        private KeyRequest(XmppAxolotlSession session, byte[] keyMaterial) {
+            this.session = session;
+            this.keyMaterial = keyMaterial;
+        }
+
+        XmppAxolotlSession.AxolotlKey build() {
+            return session.processSending(keyMaterial, false);
+        }
+    }
+
     public byte[] getInnerKey() {
         return innerKey;
     }
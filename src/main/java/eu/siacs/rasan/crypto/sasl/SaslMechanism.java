@@ -66,4 +66,12 @@ public abstract class SaslMechanism {
     public String getResponse(final String challenge) throws AuthenticationException {
         return "";
     }
+
+    /**
+     * @return true if the mechanism has stored new values in the keys of the account that should
+     * be persisted after a successful authentication
+     */
+    public boolean hasUpdatedAccountKeys() {
+        return false;
+    }
 }
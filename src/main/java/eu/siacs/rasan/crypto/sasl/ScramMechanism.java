@@ -61,17 +61,32 @@ abstract class ScramMechanism extends SaslMechanism {
         }
     }
 
+    /**
+     * Derived keys are looked up in the in-memory cache first and in the keys of the account
+     * second. Newly derived keys are stored in the account so that the costly Hi() iteration
+     * does not have to be repeated after a restart as long as salt and iteration count stay the
+     * same. The stored keys are removed when the password changes.
+     */
     private KeyPair getKeyPair(final String password, final String salt, final int iterations) throws ExecutionException {
-        return CACHE.get(new CacheKey(getHMAC().getAlgorithmName(), password, salt, iterations), () -> {
+        final String algorithm = getHMAC().getAlgorithmName();
+        return CACHE.get(new CacheKey(algorithm, password, salt, iterations), () -> {
+            final KeyPair stored = KeyPair.parse(account.getKey(Account.SCRAM_KEYS), algorithm, salt, iterations);
+            if (stored != null) {
+                return stored;
+            }
             final byte[] saltedPassword, serverKey, clientKey;
             saltedPassword = hi(password.getBytes(), Base64.decode(salt, Base64.DEFAULT), iterations);
             serverKey = hmac(saltedPassword, SERVER_KEY_BYTES);
             clientKey = hmac(saltedPassword, CLIENT_KEY_BYTES);
-            return new KeyPair(clientKey, serverKey);
+            final KeyPair keyPair = new KeyPair(clientKey, serverKey);
+            account.setKey(Account.SCRAM_KEYS, keyPair.serialize(algorithm, salt, iterations));
+            this.updatedAccountKeys = true;
+            return keyPair;
         });
     }
 
     private final String clientNonce;
+    private boolean updatedAccountKeys = false;
     protected State state = State.INITIAL;
     private String clientFirstMessageBare;
     private byte[] serverSignature = null;
@@ -242,6 +257,11 @@ abstract class ScramMechanism extends SaslMechanism {
         }
     }
 
+    @Override
+    public boolean hasUpdatedAccountKeys() {
+        return updatedAccountKeys;
+    }
+
     private static class KeyPair {
         final byte[] clientKey;
         final byte[] serverKey;
@@ -250,5 +270,29 @@ abstract class ScramMechanism extends SaslMechanism {
             this.clientKey = clientKey;
             this.serverKey = serverKey;
         }
+
+        private String serialize(final String algorithm, final String salt, final int iterations) {
+            return algorithm + ',' + iterations + ',' + salt + ','
+                    + Base64.encodeToString(clientKey, Base64.NO_WRAP) + ','
+                    + Base64.encodeToString(serverKey, Base64.NO_WRAP);
+        }
+
+        private static KeyPair parse(final String serialized, final String algorithm, final String salt, final int iterations) {
+            if (serialized == null) {
+                return null;
+            }
+            final String[] parts = serialized.split(",");
+            if (parts.length != 5
+                    || !parts[0].equals(algorithm)
+                    || !parts[1].equals(String.valueOf(iterations))
+                    || !parts[2].equals(salt)) {
+                return null;
+            }
+            try {
+                return new KeyPair(Base64.decode(parts[3], Base64.DEFAULT), Base64.decode(parts[4], Base64.DEFAULT));
+            } catch (final IllegalArgumentException e) {
+                return null;
+            }
+        }
     }
 }
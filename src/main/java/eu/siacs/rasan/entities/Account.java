@@ -5,6 +5,7 @@ import android.database.Cursor;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Strings;
 
 import org.json.JSONException;
@@ -51,6 +52,7 @@ public class Account extends AbstractEntity implements AvatarService.Avatarable
     public static final String RESOURCE = "resource";
 
     public static final String PINNED_MECHANISM_KEY = "pinned_mechanism";
+    public static final String SCRAM_KEYS = "scram_keys";
     public static final String PRE_AUTH_REGISTRATION_TOKEN = "pre_auth_registration";
 
     public static final int OPTION_USETLS = 0;
@@ -245,6 +247,11 @@ public class Account extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setPassword(final String password) {
+        if (!Objects.equal(this.password, password)) {
+            synchronized (this.keys) {
+                this.keys.remove(SCRAM_KEYS);
+            }
+        }
         this.password = password;
     }
 
@@ -12,7 +12,6 @@ import com.google.common.base.Strings;
 
 import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -59,7 +58,7 @@ public class Contact implements ListItem, Blockable {
     private int subscription = 0;
     private Uri systemAccount;
     private String photoUri;
-    private final JSONObject keys;
+    private final JsonAttributes keys;
     private JSONArray groups = new JSONArray();
     private final Presences presences = new Presences();
     protected Account account;
@@ -82,13 +81,7 @@ public class Contact implements ListItem, Blockable {
         this.subscription = subscription;
         this.photoUri = photoUri;
         this.systemAccount = systemAccount;
-        JSONObject tmpJsonObject;
-        try {
-            tmpJsonObject = (keys == null ? new JSONObject("") : new JSONObject(keys));
-        } catch (JSONException e) {
-            tmpJsonObject = new JSONObject();
-        }
-        this.keys = tmpJsonObject;
+        this.keys = new JsonAttributes(keys);
         if (avatar != null) {
             this.avatar = new Avatar();
             this.avatar.sha1sum = avatar;
@@ -106,7 +99,7 @@ public class Contact implements ListItem, Blockable {
 
     public Contact(final Jid jid) {
         this.jid = jid;
-        this.keys = new JSONObject();
+        this.keys = new JsonAttributes();
     }
 
     public static Contact fromCursor(final Cursor cursor) {
@@ -226,24 +219,22 @@ public class Contact implements ListItem, Blockable {
     }
 
     public ContentValues getContentValues() {
-        synchronized (this.keys) {
-            final ContentValues values = new ContentValues();
-            values.put(ACCOUNT, accountUuid);
-            values.put(SYSTEMNAME, systemName);
-            values.put(SERVERNAME, serverName);
-            values.put(PRESENCE_NAME, presenceName);
-            values.put(JID, jid.toString());
-            values.put(OPTIONS, subscription);
-            values.put(SYSTEMACCOUNT, systemAccount != null ? systemAccount.toString() : null);
-            values.put(PHOTOURI, photoUri);
-            values.put(KEYS, keys.toString());
-            values.put(AVATAR, avatar == null ? null : avatar.getFilename());
-            values.put(LAST_PRESENCE, mLastPresence);
-            values.put(LAST_TIME, mLastseen);
-            values.put(GROUPS, groups.toString());
-            values.put(RTP_CAPABILITY, rtpCapability == null ? null : rtpCapability.toString());
-            return values;
-        }
+        final ContentValues values = new ContentValues();
+        values.put(ACCOUNT, accountUuid);
+        values.put(SYSTEMNAME, systemName);
+        values.put(SERVERNAME, serverName);
+        values.put(PRESENCE_NAME, presenceName);
+        values.put(JID, jid.toString());
+        values.put(OPTIONS, subscription);
+        values.put(SYSTEMACCOUNT, systemAccount != null ? systemAccount.toString() : null);
+        values.put(PHOTOURI, photoUri);
+        values.put(KEYS, keys.serialize());
+        values.put(AVATAR, avatar == null ? null : avatar.getFilename());
+        values.put(LAST_PRESENCE, mLastPresence);
+        values.put(LAST_TIME, mLastseen);
+        values.put(GROUPS, groups.toString());
+        values.put(RTP_CAPABILITY, rtpCapability == null ? null : rtpCapability.toString());
+        return values;
     }
 
     public Account getAccount() {
@@ -324,29 +315,11 @@ public class Contact implements ListItem, Blockable {
     }
 
     public long getPgpKeyId() {
-        synchronized (this.keys) {
-            if (this.keys.has("pgp_keyid")) {
-                try {
-                    return this.keys.getLong("pgp_keyid");
-                } catch (JSONException e) {
-                    return 0;
-                }
-            } else {
-                return 0;
-            }
-        }
+        return this.keys.getLong("pgp_keyid", 0);
     }
 
     public boolean setPgpKeyId(long keyId) {
-        final long previousKeyId = getPgpKeyId();
-        synchronized (this.keys) {
-            try {
-                this.keys.put("pgp_keyid", keyId);
-                return previousKeyId != keyId;
-            } catch (final JSONException ignored) {
-            }
-        }
-        return false;
+        return this.keys.put("pgp_keyid", keyId);
     }
 
     public void setOption(int option) {
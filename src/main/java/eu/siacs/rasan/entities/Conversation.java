@@ -8,12 +8,9 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -66,7 +63,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private static final String ATTRIBUTE_CRYPTO_TARGETS = "crypto_targets";
     private static final String ATTRIBUTE_NEXT_ENCRYPTION = "next_encryption";
     private static final String ATTRIBUTE_CORRECTING_MESSAGE = "correcting_message";
-    protected final ArrayList<Message> messages = new ArrayList<>();
+    protected final MessageList messages = new MessageList();
     public AtomicBoolean messagesLoaded = new AtomicBoolean(true);
     protected Account account = null;
     private String draftMessage;
@@ -77,7 +74,8 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private int status;
     private final long created;
     private int mode;
-    private JSONObject attributes;
+    private final JsonAttributes attributes;
+    private volatile ConversationOrder order = null;
     private Jid nextCounterpart;
     private transient MucOptions mucOptions = null;
     private boolean messagesLeftOnServer = true;
@@ -104,11 +102,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         this.created = created;
         this.status = status;
         this.mode = mode;
-        try {
-            this.attributes = new JSONObject(attributes == null ? "" : attributes);
-        } catch (JSONException e) {
-            this.attributes = new JSONObject();
-        }
+        this.attributes = new JsonAttributes(attributes);
     }
 
     public static Conversation fromCursor(Cursor cursor) {
@@ -217,7 +211,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findUnsentMessageWithUuid(String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
+            for (final Message message : this.messages.getByUuid(uuid)) {
                 final int s = message.getStatus();
                 if ((s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) && message.getUuid().equals(uuid)) {
                     return message;
@@ -258,7 +252,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findMessageWithFileAndUuid(final String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
+            for (final Message message : this.messages.getByUuid(uuid)) {
                 final Transferable transferable = message.getTransferable();
                 final boolean unInitiatedButKnownSize = MessageUtils.unInitiatedButKnownSize(message);
                 if (message.getUuid().equals(uuid)
@@ -273,13 +267,8 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findMessageWithUuid(final String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
+            return this.messages.first(this.messages.getByUuid(uuid));
         }
-        return null;
     }
 
     public boolean markAsDeleted(final List<String> uuids) {
@@ -321,6 +310,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         synchronized (this.messages) {
             this.messages.clear();
         }
+        invalidateOrder();
     }
 
     public boolean setIncomingChatState(ChatState state) {
@@ -381,15 +371,14 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findSentMessageWithUuidOrRemoteId(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())
-                        || (message.getStatus() >= Message.STATUS_SEND
-                        && id.equals(message.getRemoteMsgId()))) {
-                    return message;
+            final List<Message> candidates = new ArrayList<>(this.messages.getByUuid(id));
+            for (final Message message : this.messages.getByRemoteMsgId(id)) {
+                if (message.getStatus() >= Message.STATUS_SEND && !candidates.contains(message)) {
+                    candidates.add(message);
                 }
             }
+            return this.messages.first(candidates);
         }
-        return null;
     }
 
     public Message findMessageWithRemoteIdAndCounterpart(String id, Jid counterpart, boolean received, boolean carbon) {
@@ -416,36 +405,29 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findSentMessageWithUuid(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())) {
-                    return message;
-                }
-            }
+            return this.messages.first(this.messages.getByUuid(id));
         }
-        return null;
     }
 
     public Message findMessageWithRemoteId(String id, Jid counterpart) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (counterpart.equals(message.getCounterpart())
-                        && (id.equals(message.getRemoteMsgId()) || id.equals(message.getUuid()))) {
-                    return message;
+            final List<Message> candidates = new ArrayList<>();
+            for (final Message message : Iterables.concat(this.messages.getByRemoteMsgId(id), this.messages.getByUuid(id))) {
+                if (counterpart.equals(message.getCounterpart()) && !candidates.contains(message)) {
+                    candidates.add(message);
                 }
             }
+            return this.messages.first(candidates);
         }
-        return null;
     }
 
     public Message findMessageWithServerMsgId(String id) {
+        if (id == null) {
+            return null;
+        }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id != null && id.equals(message.getServerMsgId())) {
-                    return message;
-                }
-            }
+            return this.messages.first(this.messages.getByServerMsgId(id));
         }
-        return null;
     }
 
     public boolean hasMessageWithCounterpart(Jid counterpart) {
@@ -541,12 +523,16 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     @Override
     public int compareTo(@NonNull Conversation another) {
         return ComparisonChain.start()
-                .compareFalseFirst(another.getBooleanAttribute(ATTRIBUTE_PINNED_ON_TOP, false), getBooleanAttribute(ATTRIBUTE_PINNED_ON_TOP, false))
+                .compareFalseFirst(another.isPinnedOnTop(), isPinnedOnTop())
                 .compare(another.getSortableTime(), getSortableTime())
                 .result();
     }
 
-    private long getSortableTime() {
+    boolean isPinnedOnTop() {
+        return getBooleanAttribute(ATTRIBUTE_PINNED_ON_TOP, false);
+    }
+
+    long getSortableTime() {
         Draft draft = getDraft();
         long messageTime = getLatestMessage().getTimeSent();
         if (draft == null) {
@@ -592,6 +578,12 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         return unread;
     }
 
+    public Message getFirstMessage() {
+        synchronized (this.messages) {
+            return this.messages.size() == 0 ? null : this.messages.get(0);
+        }
+    }
+
     public Message getLatestMessage() {
         synchronized (this.messages) {
             if (this.messages.size() == 0) {
@@ -676,9 +668,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         values.put(CREATED, created);
         values.put(STATUS, status);
         values.put(MODE, mode);
-        synchronized (this.attributes) {
-            values.put(ATTRIBUTES, attributes.toString());
-        }
+        values.put(ATTRIBUTES, attributes.serialize());
         return values;
     }
 
@@ -832,13 +822,8 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             return false;
         }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (serverMsgId.equals(message.getServerMsgId()) || remoteMsgId.equals(message.getRemoteMsgId())) {
-                    return true;
-                }
-            }
+            return !this.messages.getByServerMsgId(serverMsgId).isEmpty() || !this.messages.getByRemoteMsgId(remoteMsgId).isEmpty();
         }
-        return false;
     }
 
     public MamReference getLastMessageTransmitted() {
@@ -884,60 +869,31 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public boolean setAttribute(String key, String value) {
-        synchronized (this.attributes) {
-            try {
-                if (value == null) {
-                    if (this.attributes.has(key)) {
-                        this.attributes.remove(key);
-                        return true;
-                    } else {
-                        return false;
-                    }
-                } else {
-                    final String prev = this.attributes.optString(key, null);
-                    this.attributes.put(key, value);
-                    return !value.equals(prev);
-                }
-            } catch (JSONException e) {
-                throw new AssertionError(e);
-            }
+        final boolean changed = this.attributes.put(key, value);
+        if (changed) {
+            invalidateOrder();
         }
+        return changed;
     }
 
     public boolean setAttribute(String key, List<Jid> jids) {
-        JSONArray array = new JSONArray();
+        final List<String> values = new ArrayList<>(jids.size());
         for (Jid jid : jids) {
-            array.put(jid.asBareJid().toString());
-        }
-        synchronized (this.attributes) {
-            try {
-                this.attributes.put(key, array);
-                return true;
-            } catch (JSONException e) {
-                return false;
-            }
+            values.add(jid.asBareJid().toString());
         }
+        return this.attributes.put(key, values);
     }
 
     public String getAttribute(String key) {
-        synchronized (this.attributes) {
-            return this.attributes.optString(key, null);
-        }
+        return this.attributes.getString(key);
     }
 
     private List<Jid> getJidListAttribute(String key) {
         ArrayList<Jid> list = new ArrayList<>();
-        synchronized (this.attributes) {
+        for (String value : this.attributes.getStringList(key)) {
             try {
-                JSONArray array = this.attributes.getJSONArray(key);
-                for (int i = 0; i < array.length(); ++i) {
-                    try {
-                        list.add(Jid.of(array.getString(i)));
-                    } catch (IllegalArgumentException e) {
-                        //ignored
-                    }
-                }
-            } catch (JSONException e) {
+                list.add(Jid.of(value));
+            } catch (IllegalArgumentException e) {
                 //ignored
             }
         }
@@ -945,56 +901,36 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     private int getIntAttribute(String key, int defaultValue) {
-        String value = this.getAttribute(key);
-        if (value == null) {
-            return defaultValue;
-        } else {
-            try {
-                return Integer.parseInt(value);
-            } catch (NumberFormatException e) {
-                return defaultValue;
-            }
-        }
+        return this.attributes.getInt(key, defaultValue);
     }
 
     public long getLongAttribute(String key, long defaultValue) {
-        String value = this.getAttribute(key);
-        if (value == null) {
-            return defaultValue;
-        } else {
-            try {
-                return Long.parseLong(value);
-            } catch (NumberFormatException e) {
-                return defaultValue;
-            }
-        }
+        return this.attributes.getLong(key, defaultValue);
     }
 
     public boolean getBooleanAttribute(String key, boolean defaultValue) {
-        String value = this.getAttribute(key);
-        if (value == null) {
-            return defaultValue;
-        } else {
-            return Boolean.parseBoolean(value);
-        }
+        return this.attributes.getBoolean(key, defaultValue);
     }
 
     public void add(Message message) {
         synchronized (this.messages) {
             this.messages.add(message);
         }
+        invalidateOrder();
     }
 
     public void prepend(int offset, Message message) {
         synchronized (this.messages) {
             this.messages.add(Math.min(offset, this.messages.size()), message);
         }
+        invalidateOrder();
     }
 
     public void addAll(int index, List<Message> messages) {
         synchronized (this.messages) {
             this.messages.addAll(index, messages);
         }
+        invalidateOrder();
         account.getPgpDecryptionService().decrypt(messages);
     }
 
@@ -1007,11 +943,12 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             }
             untieMessages();
         }
+        invalidateOrder();
     }
 
     public void sort() {
         synchronized (this.messages) {
-            Collections.sort(this.messages, (left, right) -> {
+            this.messages.sort((left, right) -> {
                 if (left.getTimeSent() < right.getTimeSent()) {
                     return -1;
                 } else if (left.getTimeSent() > right.getTimeSent()) {
@@ -1022,6 +959,21 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             });
             untieMessages();
         }
+        invalidateOrder();
+    }
+
+    void setOrder(final ConversationOrder order) {
+        this.order = order;
+    }
+
+    /**
+     * Has to be called whenever the pinned flag or the sortable time may have changed.
+     */
+    public void invalidateOrder() {
+        final ConversationOrder order = this.order;
+        if (order != null) {
+            order.invalidate(this);
+        }
     }
 
     private void untieMessages() {
@@ -0,0 +1,114 @@
+package eu.siacs.rasan.entities;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maintains conversations in the order of {@link Conversation#compareTo(Conversation)} with cached
+ * sort keys.
+ * <p>
+ * Every conversation is kept in a sorted set together with the pinned flag and the sortable time
+ * it had when it was last positioned. Conversations invalidate their position whenever they
+ * change in a way that may affect their key (messages added or removed, pinned, draft changed).
+ * Invalidating only marks the conversation, so it is safe to do while holding the conversation's
+ * own locks. Marked conversations are repositioned the next time the order is read, which takes
+ * logarithmic time for each of them. Conversations with equal keys keep the order in which they
+ * were added.
+ */
+public class ConversationOrder {
+
+    private final TreeSet<Entry> ordered = new TreeSet<>();
+    private final HashMap<Conversation, Entry> entries = new HashMap<>();
+    private final Set<Conversation> invalidated = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private long sequence = 0;
+
+    public synchronized void add(final Conversation conversation) {
+        conversation.setOrder(this);
+        update(conversation);
+    }
+
+    public synchronized void remove(final Conversation conversation) {
+        conversation.setOrder(null);
+        invalidated.remove(conversation);
+        final Entry entry = entries.remove(conversation);
+        if (entry != null) {
+            ordered.remove(entry);
+        }
+    }
+
+    /**
+     * Marks the conversation to have its sort key recomputed the next time the order is read.
+     */
+    public void invalidate(final Conversation conversation) {
+        invalidated.add(conversation);
+    }
+
+    /**
+     * @return the conversations that have been added, in order
+     */
+    public synchronized List<Conversation> get() {
+        if (!invalidated.isEmpty()) {
+            for (final Conversation conversation : new ArrayList<>(invalidated)) {
+                invalidated.remove(conversation);
+                if (entries.containsKey(conversation)) {
+                    update(conversation);
+                }
+            }
+        }
+        final List<Conversation> result = new ArrayList<>(ordered.size());
+        for (final Entry entry : ordered) {
+            result.add(entry.conversation);
+        }
+        return result;
+    }
+
+    /**
+     * Recomputes the sort key of the conversation and moves it to its new position if needed.
+     * Conversations that are not part of the order yet are added.
+     */
+    private void update(final Conversation conversation) {
+        final boolean pinned = conversation.isPinnedOnTop();
+        final long time = conversation.getSortableTime();
+        final Entry entry = entries.get(conversation);
+        if (entry != null) {
+            if (entry.pinned == pinned && entry.time == time) {
+                return;
+            }
+            ordered.remove(entry);
+        }
+        final Entry updated = new Entry(conversation, pinned, time, entry == null ? sequence++ : entry.sequence);
+        entries.put(conversation, updated);
+        ordered.add(updated);
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        private final Conversation conversation;
+        private final boolean pinned;
+        private final long time;
+        private final long sequence;
+
+        private Entry(final Conversation conversation, final boolean pinned, final long time, final long sequence) {
+            this.conversation = conversation;
+            this.pinned = pinned;
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(final Entry other) {
+            if (pinned != other.pinned) {
+                return pinned ? -1 : 1;
+            }
+            if (time != other.time) {
+                return time > other.time ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
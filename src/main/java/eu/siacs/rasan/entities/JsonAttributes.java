@@ -0,0 +1,201 @@
+package eu.siacs.rasan.entities;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Attributes of an entity that are persisted as a JSON object.
+ * <p>
+ * Reads are served from an immutable snapshot that holds every value in its parsed form, so they
+ * neither lock nor parse. Writes are serialized, update the JSON object and publish a new
+ * snapshot. The JSON representation is only serialized again after something changed.
+ */
+public class JsonAttributes {
+
+    private final JSONObject json;
+    private volatile HashMap<String, Value> snapshot;
+    private String serialized;
+
+    public JsonAttributes(final String serialized) {
+        JSONObject json;
+        try {
+            json = new JSONObject(serialized == null ? "" : serialized);
+        } catch (final JSONException e) {
+            json = new JSONObject();
+        }
+        this.json = json;
+        final HashMap<String, Value> snapshot = new HashMap<>();
+        final Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            snapshot.put(key, Value.of(json.opt(key)));
+        }
+        this.snapshot = snapshot;
+    }
+
+    public JsonAttributes() {
+        this.json = new JSONObject();
+        this.snapshot = new HashMap<>();
+    }
+
+    public String getString(final String key) {
+        final Value value = snapshot.get(key);
+        return value == null ? null : value.string;
+    }
+
+    public boolean getBoolean(final String key, final boolean defaultValue) {
+        final Value value = snapshot.get(key);
+        return value == null ? defaultValue : value.booleanValue;
+    }
+
+    public long getLong(final String key, final long defaultValue) {
+        final Value value = snapshot.get(key);
+        return value == null || !value.isLong ? defaultValue : value.longValue;
+    }
+
+    public int getInt(final String key, final int defaultValue) {
+        final Value value = snapshot.get(key);
+        if (value == null || !value.isLong || value.longValue != (int) value.longValue) {
+            return defaultValue;
+        }
+        return (int) value.longValue;
+    }
+
+    /**
+     * @return the strings of a JSON array attribute or an empty list if the attribute is not an
+     * array
+     */
+    public List<String> getStringList(final String key) {
+        final Value value = snapshot.get(key);
+        return value == null || value.list == null ? Collections.emptyList() : value.list;
+    }
+
+    /**
+     * Sets or, if the value is null, removes a string attribute.
+     *
+     * @return true if the attribute changed
+     */
+    public synchronized boolean put(final String key, final String value) {
+        final Value previous = snapshot.get(key);
+        if (value == null) {
+            if (previous == null) {
+                return false;
+            }
+            json.remove(key);
+            publish(key, null);
+            return true;
+        }
+        if (previous != null && previous.list == null && value.equals(previous.string)) {
+            return false;
+        }
+        try {
+            json.put(key, value);
+        } catch (final JSONException e) {
+            throw new AssertionError(e);
+        }
+        publish(key, Value.of(value));
+        return true;
+    }
+
+    /**
+     * Sets a numeric attribute. Unlike {@link #put(String, String)} the value is stored as a JSON
+     * number.
+     *
+     * @return true if the attribute changed
+     */
+    public synchronized boolean put(final String key, final long value) {
+        final Value previous = snapshot.get(key);
+        if (previous != null && previous.isLong && previous.longValue == value && previous.list == null) {
+            return false;
+        }
+        try {
+            json.put(key, value);
+        } catch (final JSONException e) {
+            throw new AssertionError(e);
+        }
+        publish(key, Value.of(value));
+        return true;
+    }
+
+    public synchronized boolean put(final String key, final List<String> values) {
+        final JSONArray array = new JSONArray();
+        for (final String value : values) {
+            array.put(value);
+        }
+        try {
+            json.put(key, array);
+        } catch (final JSONException e) {
+            return false;
+        }
+        publish(key, Value.of(array));
+        return true;
+    }
+
+    /**
+     * @return the JSON representation of the attributes. The result is cached until the next
+     * change.
+     */
+    public synchronized String serialize() {
+        if (serialized == null) {
+            serialized = json.toString();
+        }
+        return serialized;
+    }
+
+    private void publish(final String key, final Value value) {
+        final HashMap<String, Value> snapshot = new HashMap<>(this.snapshot);
+        if (value == null) {
+            snapshot.remove(key);
+        } else {
+            snapshot.put(key, value);
+        }
+        this.snapshot = snapshot;
+        this.serialized = null;
+    }
+
+    private static class Value {
+
+        private final String string;
+        private final boolean booleanValue;
+        private final boolean isLong;
+        private final long longValue;
+        private final List<String> list;
+
+        private Value(final String string, final boolean isLong, final long longValue, final List<String> list) {
+            this.string = string;
+            this.booleanValue = Boolean.parseBoolean(string);
+            this.isLong = isLong;
+            this.longValue = longValue;
+            this.list = list;
+        }
+
+        private static Value of(final Object object) {
+            if (object instanceof JSONArray) {
+                final JSONArray array = (JSONArray) object;
+                final List<String> list = new ArrayList<>(array.length());
+                for (int i = 0; i < array.length(); ++i) {
+                    final Object element = array.opt(i);
+                    if (element != null) {
+                        list.add(element.toString());
+                    }
+                }
+                return new Value(array.toString(), false, 0, Collections.unmodifiableList(list));
+            } else if (object instanceof Integer || object instanceof Long) {
+                return new Value(object.toString(), true, ((Number) object).longValue(), null);
+            }
+            final String string = String.valueOf(object);
+            try {
+                return new Value(string, true, Long.parseLong(string), null);
+            } catch (final NumberFormatException e) {
+                return new Value(string, false, 0, null);
+            }
+        }
+    }
+}
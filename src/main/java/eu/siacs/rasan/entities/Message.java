@@ -403,7 +403,16 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setRemoteMsgId(String id) {
-        this.remoteMsgId = id;
+        if (this.conversation instanceof Conversation) {
+            final MessageList messages = ((Conversation) this.conversation).messages;
+            synchronized (messages) {
+                final String previous = this.remoteMsgId;
+                this.remoteMsgId = id;
+                messages.onRemoteMsgIdChanged(this, previous);
+            }
+        } else {
+            this.remoteMsgId = id;
+        }
     }
 
     public String getServerMsgId() {
@@ -411,7 +420,16 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setServerMsgId(String id) {
-        this.serverMsgId = id;
+        if (this.conversation instanceof Conversation) {
+            final MessageList messages = ((Conversation) this.conversation).messages;
+            synchronized (messages) {
+                final String previous = this.serverMsgId;
+                this.serverMsgId = id;
+                messages.onServerMsgIdChanged(this, previous);
+            }
+        } else {
+            this.serverMsgId = id;
+        }
     }
 
     public boolean isRead() {
@@ -766,7 +784,16 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setUuid(String uuid) {
-        this.uuid = uuid;
+        if (this.conversation instanceof Conversation) {
+            final MessageList messages = ((Conversation) this.conversation).messages;
+            synchronized (messages) {
+                final String previous = this.uuid;
+                this.uuid = uuid;
+                messages.onUuidChanged(this, previous);
+            }
+        } else {
+            this.uuid = uuid;
+        }
     }
 
     public String getEditedId() {
@@ -0,0 +1,278 @@
+package eu.siacs.rasan.entities;
+
+import com.google.common.collect.ArrayListMultimap;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Array backed list of messages that keeps spare capacity at both ends.
+ * <p>
+ * Conversations grow at the end when messages arrive and at the front when older pages are loaded
+ * from the database, and they are trimmed from the front. Keeping room in front of the first
+ * element makes prepending a page and trimming old messages proportional to the number of affected
+ * messages instead of the size of the conversation.
+ * <p>
+ * The list also keeps hash indexes of its messages by uuid, remote message id and server message
+ * id. Message updates those indexes when one of these ids changes while it is part of a
+ * conversation. All access has to be synchronized on the list.
+ */
+public class MessageList extends AbstractList<Message> implements RandomAccess {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final Message[] EMPTY = new Message[0];
+
+    private Message[] elements = EMPTY;
+    private int start = 0;
+    private int size = 0;
+
+    private final ArrayListMultimap<String, Message> byUuid = ArrayListMultimap.create();
+    private final ArrayListMultimap<String, Message> byRemoteMsgId = ArrayListMultimap.create();
+    private final ArrayListMultimap<String, Message> byServerMsgId = ArrayListMultimap.create();
+
+    @Override
+    public Message get(final int index) {
+        checkIndex(index, size);
+        return elements[start + index];
+    }
+
+    @Override
+    public Message set(final int index, final Message message) {
+        checkIndex(index, size);
+        final Message previous = elements[start + index];
+        if (previous != message) {
+            unindex(previous);
+            index(message);
+        }
+        elements[start + index] = message;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean add(final Message message) {
+        ensureCapacity(0, 1);
+        elements[start + size] = message;
+        ++size;
+        ++modCount;
+        index(message);
+        return true;
+    }
+
+    @Override
+    public void add(final int index, final Message message) {
+        checkIndex(index, size + 1);
+        if (index < size / 2) {
+            ensureCapacity(1, 0);
+            System.arraycopy(elements, start, elements, start - 1, index);
+            --start;
+        } else {
+            ensureCapacity(0, 1);
+            System.arraycopy(elements, start + index, elements, start + index + 1, size - index);
+        }
+        elements[start + index] = message;
+        ++size;
+        ++modCount;
+        index(message);
+    }
+
+    @Override
+    public boolean addAll(final Collection<? extends Message> messages) {
+        return addAll(size, messages);
+    }
+
+    @Override
+    public boolean addAll(final int index, final Collection<? extends Message> messages) {
+        checkIndex(index, size + 1);
+        final Object[] added = messages.toArray();
+        final int count = added.length;
+        if (count == 0) {
+            return false;
+        }
+        if (index < size / 2) {
+            ensureCapacity(count, 0);
+            System.arraycopy(elements, start, elements, start - count, index);
+            start -= count;
+        } else {
+            ensureCapacity(0, count);
+            System.arraycopy(elements, start + index, elements, start + index + count, size - index);
+        }
+        System.arraycopy(added, 0, elements, start + index, count);
+        size += count;
+        ++modCount;
+        for (final Object message : added) {
+            index((Message) message);
+        }
+        return true;
+    }
+
+    @Override
+    public Message remove(final int index) {
+        checkIndex(index, size);
+        final Message removed = elements[start + index];
+        if (index < size / 2) {
+            System.arraycopy(elements, start, elements, start + 1, index);
+            elements[start] = null;
+            ++start;
+        } else {
+            System.arraycopy(elements, start + index + 1, elements, start + index, size - index - 1);
+            elements[start + size - 1] = null;
+        }
+        --size;
+        ++modCount;
+        unindex(removed);
+        return removed;
+    }
+
+    @Override
+    protected void removeRange(final int fromIndex, final int toIndex) {
+        final int count = toIndex - fromIndex;
+        if (count <= 0) {
+            return;
+        }
+        for (int i = fromIndex; i < toIndex; ++i) {
+            unindex(elements[start + i]);
+        }
+        if (fromIndex < size - toIndex) {
+            System.arraycopy(elements, start, elements, start + count, fromIndex);
+            Arrays.fill(elements, start, start + count, null);
+            start += count;
+        } else {
+            System.arraycopy(elements, start + toIndex, elements, start + fromIndex, size - toIndex);
+            Arrays.fill(elements, start + size - count, start + size, null);
+        }
+        size -= count;
+        ++modCount;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(elements, start, start + size, null);
+        start = elements.length / 2;
+        size = 0;
+        ++modCount;
+        byUuid.clear();
+        byRemoteMsgId.clear();
+        byServerMsgId.clear();
+    }
+
+    @Override
+    public void sort(final Comparator<? super Message> comparator) {
+        Arrays.sort(elements, start, start + size, comparator);
+        ++modCount;
+    }
+
+    List<Message> getByUuid(final String uuid) {
+        return byUuid.get(uuid);
+    }
+
+    List<Message> getByRemoteMsgId(final String remoteMsgId) {
+        return byRemoteMsgId.get(remoteMsgId);
+    }
+
+    List<Message> getByServerMsgId(final String serverMsgId) {
+        return byServerMsgId.get(serverMsgId);
+    }
+
+    /**
+     * @return the candidate that comes first in this list or null if there are no candidates
+     */
+    Message first(final Collection<Message> candidates) {
+        if (candidates.size() <= 1) {
+            return candidates.isEmpty() ? null : candidates.iterator().next();
+        }
+        Message first = null;
+        int firstIndex = Integer.MAX_VALUE;
+        for (final Message candidate : candidates) {
+            final int index = indexOf(candidate);
+            if (index >= 0 && index < firstIndex) {
+                first = candidate;
+                firstIndex = index;
+            }
+        }
+        return first;
+    }
+
+    private boolean contains(final Message message) {
+        return message.getUuid() != null && byUuid.containsEntry(message.getUuid(), message);
+    }
+
+    void onRemoteMsgIdChanged(final Message message, final String previous) {
+        if (contains(message)) {
+            if (previous != null) {
+                byRemoteMsgId.remove(previous, message);
+            }
+            if (message.getRemoteMsgId() != null) {
+                byRemoteMsgId.put(message.getRemoteMsgId(), message);
+            }
+        }
+    }
+
+    void onServerMsgIdChanged(final Message message, final String previous) {
+        if (contains(message)) {
+            if (previous != null) {
+                byServerMsgId.remove(previous, message);
+            }
+            if (message.getServerMsgId() != null) {
+                byServerMsgId.put(message.getServerMsgId(), message);
+            }
+        }
+    }
+
+    void onUuidChanged(final Message message, final String previous) {
+        if (previous != null && byUuid.remove(previous, message) && message.getUuid() != null) {
+            byUuid.put(message.getUuid(), message);
+        }
+    }
+
+    private void index(final Message message) {
+        if (message.getUuid() != null) {
+            byUuid.put(message.getUuid(), message);
+        }
+        if (message.getRemoteMsgId() != null) {
+            byRemoteMsgId.put(message.getRemoteMsgId(), message);
+        }
+        if (message.getServerMsgId() != null) {
+            byServerMsgId.put(message.getServerMsgId(), message);
+        }
+    }
+
+    private void unindex(final Message message) {
+        if (message.getUuid() != null) {
+            byUuid.remove(message.getUuid(), message);
+        }
+        if (message.getRemoteMsgId() != null) {
+            byRemoteMsgId.remove(message.getRemoteMsgId(), message);
+        }
+        if (message.getServerMsgId() != null) {
+            byServerMsgId.remove(message.getServerMsgId(), message);
+        }
+    }
+
+    private void ensureCapacity(final int front, final int back) {
+        if (start >= front && elements.length - start - size >= back) {
+            return;
+        }
+        final int required = size + front + back;
+        final int capacity = Math.max(MIN_CAPACITY, required * 2);
+        final Message[] resized = new Message[capacity];
+        final int newStart = front + (capacity - required) / 2;
+        System.arraycopy(elements, start, resized, newStart, size);
+        elements = resized;
+        start = newStart;
+    }
+
+    private void checkIndex(final int index, final int bound) {
+        if (index < 0 || index >= bound) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
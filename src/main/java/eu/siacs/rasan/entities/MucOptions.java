@@ -5,8 +5,12 @@ import android.text.TextUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -35,6 +39,9 @@ public class MucOptions {
     public static final String STATUS_CODE_LOST_MEMBERSHIP = "322";
     public static final String STATUS_CODE_SHUTDOWN = "332";
     private final Set<User> users = new HashSet<>();
+    private final HashMap<Jid, User> usersByFullJid = new HashMap<>();
+    private final ArrayListMultimap<Jid, User> usersByRealJid = ArrayListMultimap.create();
+    private ImmutableList<User> usersSnapshot = null;
     private final Conversation conversation;
     public OnRenameListener onRenameListener = null;
     private boolean mAutoPushConfiguration = true;
@@ -70,10 +77,10 @@ public class MucOptions {
         User user = findUserByRealJid(jid);
         synchronized (users) {
             if (user != null && user.getRole() == Role.NONE) {
-                users.remove(user);
+                removeUser(user);
                 if (affiliation.ranks(Affiliation.MEMBER)) {
                     user.affiliation = affiliation;
-                    users.add(user);
+                    addUser(user);
                 }
             }
         }
@@ -220,14 +227,8 @@ public class MucOptions {
         User user = findUserByFullJid(jid);
         if (user != null) {
             synchronized (users) {
-                users.remove(user);
-                boolean realJidInMuc = false;
-                for (User u : users) {
-                    if (user.realJid != null && user.realJid.equals(u.realJid)) {
-                        realJidInMuc = true;
-                        break;
-                    }
-                }
+                removeUser(user);
+                final boolean realJidInMuc = user.realJid != null && usersByRealJid.containsKey(user.realJid);
                 boolean self = user.realJid != null && user.realJid.equals(account.getJid().asBareJid());
                 if (membersOnly()
                         && nonanonymous()
@@ -238,7 +239,7 @@ public class MucOptions {
                     user.role = Role.NONE;
                     user.avatar = null;
                     user.fullJid = null;
-                    users.add(user);
+                    addUser(user);
                 }
             }
         }
@@ -257,7 +258,7 @@ public class MucOptions {
                     return false; //don't add. user already exists
                 } else {
                     synchronized (users) {
-                        users.remove(old);
+                        removeUser(old);
                     }
                 }
             }
@@ -266,7 +267,7 @@ public class MucOptions {
             realJidFound = old != null;
             synchronized (users) {
                 if (old != null && (old.fullJid == null || old.role == Role.NONE)) {
-                    users.remove(old);
+                    removeUser(old);
                 }
             }
         }
@@ -274,31 +275,69 @@ public class MucOptions {
 
         synchronized (this.users) {
             if (old != null) {
-                users.remove(old);
+                removeUser(old);
             }
             boolean fullJidIsSelf = isOnline && user.getFullJid() != null && user.getFullJid().equals(self.getFullJid());
             if ((!membersOnly() || user.getAffiliation().ranks(Affiliation.MEMBER))
                     && user.getAffiliation().outranks(Affiliation.OUTCAST)
                     && !fullJidIsSelf) {
-                this.users.add(user);
+                addUser(user);
                 return !realJidFound && user.realJid != null;
             }
         }
         return false;
     }
 
+    /**
+     * Adds the user to the set of users and to the indexes. Has to be called while holding the
+     * lock on {@link #users}. Fields that are part of {@link User#hashCode()} must not change while
+     * the user is part of the set.
+     */
+    private void addUser(final User user) {
+        if (!users.add(user)) {
+            return;
+        }
+        if (user.fullJid != null) {
+            usersByFullJid.put(user.fullJid, user);
+        }
+        if (user.realJid != null) {
+            usersByRealJid.put(user.realJid, user);
+        }
+        usersSnapshot = null;
+    }
+
+    private void removeUser(final User user) {
+        if (!users.remove(user)) {
+            return;
+        }
+        if (user.fullJid != null && user.equals(usersByFullJid.get(user.fullJid))) {
+            usersByFullJid.remove(user.fullJid);
+        }
+        if (user.realJid != null) {
+            usersByRealJid.remove(user.realJid, user);
+        }
+        usersSnapshot = null;
+    }
+
+    /**
+     * @return an immutable copy of the current users that is shared until the users change
+     */
+    private List<User> getUsersSnapshot() {
+        synchronized (users) {
+            if (usersSnapshot == null) {
+                usersSnapshot = ImmutableList.copyOf(users);
+            }
+            return usersSnapshot;
+        }
+    }
+
     public User findUserByFullJid(Jid jid) {
         if (jid == null) {
             return null;
         }
         synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.getFullJid())) {
-                    return user;
-                }
-            }
+            return usersByFullJid.get(jid);
         }
-        return null;
     }
 
     public User findUserByRealJid(Jid jid) {
@@ -306,13 +345,9 @@ public class MucOptions {
             return null;
         }
         synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.realJid)) {
-                    return user;
-                }
-            }
+            final List<User> candidates = usersByRealJid.get(jid);
+            return candidates.isEmpty() ? null : candidates.get(0);
         }
-        return null;
     }
 
     public User findOrCreateUserByRealJid(Jid jid, Jid fullJid) {
@@ -353,15 +388,13 @@ public class MucOptions {
     }
 
     public ArrayList<User> getUsers(boolean includeOffline) {
-        synchronized (users) {
-            ArrayList<User> users = new ArrayList<>();
-            for (User user : this.users) {
-                if (!user.isDomain() && (includeOffline || user.getRole().ranks(Role.PARTICIPANT))) {
-                    users.add(user);
-                }
+        final ArrayList<User> users = new ArrayList<>();
+        for (User user : getUsersSnapshot()) {
+            if (!user.isDomain() && (includeOffline || user.getRole().ranks(Role.PARTICIPANT))) {
+                users.add(user);
             }
-            return users;
         }
+        return users;
     }
 
     public ArrayList<User> getUsersWithChatState(ChatState state, int max) {
@@ -383,14 +416,12 @@ public class MucOptions {
         ArrayList<User> subset = new ArrayList<>();
         HashSet<Jid> jids = new HashSet<>();
         jids.add(account.getJid().asBareJid());
-        synchronized (users) {
-            for (User user : users) {
-                if (user.getRealJid() == null || (user.getRealJid().getLocal() != null && jids.add(user.getRealJid()))) {
-                    subset.add(user);
-                }
-                if (subset.size() >= max) {
-                    break;
-                }
+        for (User user : getUsersSnapshot()) {
+            if (user.getRealJid() == null || (user.getRealJid().getLocal() != null && jids.add(user.getRealJid()))) {
+                subset.add(user);
+            }
+            if (subset.size() >= max) {
+                break;
             }
         }
         return subset;
@@ -479,6 +510,9 @@ public class MucOptions {
     public void setOffline() {
         synchronized (users) {
             this.users.clear();
+            this.usersByFullJid.clear();
+            this.usersByRealJid.clear();
+            this.usersSnapshot = null;
         }
         this.error = Error.NO_RESPONSE;
         this.isOnline = false;
@@ -541,7 +575,7 @@ public class MucOptions {
 
     public long[] getPgpKeyIds() {
         List<Long> ids = new ArrayList<>();
-        for (User user : this.users) {
+        for (User user : getUsersSnapshot()) {
             if (user.getPgpKeyId() != 0) {
                 ids.add(user.getPgpKeyId());
             }
@@ -617,11 +651,9 @@ public class MucOptions {
 
     public List<Jid> getMembers(final boolean includeDomains) {
         ArrayList<Jid> members = new ArrayList<>();
-        synchronized (users) {
-            for (User user : users) {
-                if (user.affiliation.ranks(Affiliation.MEMBER) && user.realJid != null && !user.realJid.asBareJid().equals(conversation.account.getJid().asBareJid()) && (!user.isDomain() || includeDomains)) {
-                    members.add(user.realJid);
-                }
+        for (User user : getUsersSnapshot()) {
+            if (user.affiliation.ranks(Affiliation.MEMBER) && user.realJid != null && !user.realJid.asBareJid().equals(conversation.account.getJid().asBareJid()) && (!user.isDomain() || includeDomains)) {
+                members.add(user.realJid);
             }
         }
         return members;
@@ -425,7 +425,7 @@ public class HttpDownloadConnection implements Transferable {
                 outputStream = AbstractConnectionManager.createOutputStream(file, false, false);
             }
             int count;
-            final byte[] buffer = new byte[4096];
+            final byte[] buffer = new byte[Config.FILE_TRANSFER_BUFFER_SIZE];
             while ((count = inputStream.read(buffer)) != -1) {
                 transmitted += count;
                 try {
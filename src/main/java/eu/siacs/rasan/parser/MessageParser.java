@@ -733,10 +733,17 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                     && remoteMsgId != null
                     && !selfAddressed
                     && !isTypeGroupChat) {
-                processMessageReceipts(account, packet, remoteMsgId, query);
+                if (query == null) {
+                    //receipts are only sent once the message has been committed
+                    mXmppConnectionService.databaseBackend.createMessageBatched(message, () -> processMessageReceipts(account, packet, remoteMsgId, null));
+                } else {
+                    //receipts requested during catch up are sent after the fin, which flushes first
+                    processMessageReceipts(account, packet, remoteMsgId, query);
+                    mXmppConnectionService.databaseBackend.createMessageBatched(message);
+                }
+            } else {
+                mXmppConnectionService.databaseBackend.createMessageBatched(message);
             }
-
-            mXmppConnectionService.databaseBackend.createMessage(message);
             final HttpConnectionManager manager = this.mXmppConnectionService.getHttpConnectionManager();
             if (message.trusted() && message.treatAsDownloadable() && manager.getAutoAcceptFileSize() > 0) {
                 manager.createNewDownloadConnection(message);
@@ -0,0 +1,209 @@
+package eu.siacs.rasan.persistance;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import eu.siacs.rasan.Config;
+import eu.siacs.rasan.utils.CryptoHelper;
+import eu.siacs.rasan.utils.SerialSingleThreadExecutor;
+
+/**
+ * Second level cache of scaled thumbnails and rendered avatars that survives restarts.
+ * <p>
+ * Every entry is a file named after the SHA-1 of its key. Keys have to be derived from the content
+ * they were rendered from (a file hash or a file's size and modification time, plus the target
+ * size) so that entries never have to be invalidated. The least recently used entries are removed
+ * once the total size exceeds the limit. The index is built from the directory on first use and
+ * recency is persisted as the modification time of the files. Entries are written in the
+ * background.
+ * <p>
+ * Entries derived from content that can be deleted by the user are stored in a group (the uuid of
+ * the message they belong to) and have to be removed with {@link #remove(String)} along with it.
+ */
+public class BitmapDiskCache {
+
+    private static final String DIRECTORY = "bitmaps";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String GROUP_SEPARATOR = ".";
+    private static final SerialSingleThreadExecutor WRITE_EXECUTOR = new SerialSingleThreadExecutor("BitmapDiskCache");
+
+    private final Context context;
+    private final long maxSize;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private File directory = null;
+    private long size = 0;
+
+    public BitmapDiskCache(final Context context, final long maxSize) {
+        this.context = context;
+        this.maxSize = maxSize;
+    }
+
+    public Bitmap get(final String key) {
+        return getByName(name(key));
+    }
+
+    public Bitmap get(final String group, final String key) {
+        return getByName(name(group, key));
+    }
+
+    public void put(final String key, final Bitmap bitmap) {
+        putByName(name(key), bitmap);
+    }
+
+    public void put(final String group, final String key, final Bitmap bitmap) {
+        putByName(name(group, key), bitmap);
+    }
+
+    /**
+     * Removes all entries of the group. Writes of the group that are still queued are removed too.
+     */
+    public void remove(final String group) {
+        final String prefix = name(group) + GROUP_SEPARATOR;
+        WRITE_EXECUTOR.execute(() -> {
+            synchronized (entries) {
+                if (directory == null) {
+                    load();
+                }
+                final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    final Map.Entry<String, Long> entry = iterator.next();
+                    if (entry.getKey().startsWith(prefix)) {
+                        new File(directory, entry.getKey()).delete();
+                        size -= entry.getValue();
+                        iterator.remove();
+                    }
+                }
+            }
+        });
+    }
+
+    private Bitmap getByName(final String name) {
+        final File file;
+        synchronized (entries) {
+            if (lookup(name) == null) {
+                return null;
+            }
+            file = new File(directory, name);
+        }
+        final Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        if (bitmap == null) {
+            removeByName(name);
+            return null;
+        }
+        WRITE_EXECUTOR.execute(() -> file.setLastModified(System.currentTimeMillis()));
+        return bitmap;
+    }
+
+    private void putByName(final String name, final Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        WRITE_EXECUTOR.execute(() -> {
+            final File directory;
+            synchronized (entries) {
+                if (lookup(name) != null) {
+                    return;
+                }
+                directory = this.directory;
+            }
+            if (!directory.exists() && !directory.mkdirs()) {
+                Log.d(Config.LOGTAG, "unable to create " + directory.getAbsolutePath());
+                return;
+            }
+            final File temporary = new File(directory, name + TEMPORARY_SUFFIX);
+            final File file = new File(directory, name);
+            try (final OutputStream os = new FileOutputStream(temporary)) {
+                final Bitmap.CompressFormat format = bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+                if (!bitmap.compress(format, Config.BITMAP_DISK_CACHE_QUALITY, os)) {
+                    throw new IOException("unable to compress bitmap");
+                }
+            } catch (final IOException | IllegalStateException e) {
+                Log.d(Config.LOGTAG, "unable to write cached bitmap", e);
+                temporary.delete();
+                return;
+            }
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+                return;
+            }
+            synchronized (entries) {
+                entries.put(name, file.length());
+                size += file.length();
+                trim();
+            }
+        });
+    }
+
+    private void removeByName(final String name) {
+        synchronized (entries) {
+            final Long length = entries.remove(name);
+            if (length != null) {
+                size -= length;
+                new File(directory, name).delete();
+            }
+        }
+    }
+
+    private Long lookup(final String name) {
+        if (directory == null) {
+            load();
+        }
+        return entries.get(name);
+    }
+
+    private void load() {
+        directory = new File(context.getCacheDir(), DIRECTORY);
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (final File file : files) {
+            if (file.getName().endsWith(TEMPORARY_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            entries.put(file.getName(), file.length());
+            size += file.length();
+        }
+        trim();
+        Log.d(Config.LOGTAG, "loaded bitmap disk cache with " + entries.size() + " entries (" + size / 1024 + "KiB)");
+    }
+
+    private void trim() {
+        final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            new File(directory, eldest.getKey()).delete();
+            size -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    private static String name(final String group, final String key) {
+        return name(group) + GROUP_SEPARATOR + name(key);
+    }
+
+    private static String name(final String key) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return CryptoHelper.bytesToHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -20,7 +20,6 @@ import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.state.PreKeyRecord;
-import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 
 import java.io.ByteArrayInputStream;
@@ -31,13 +30,18 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import eu.siacs.rasan.Config;
 import eu.siacs.rasan.crypto.axolotl.AxolotlService;
@@ -64,10 +68,11 @@ import eu.siacs.rasan.xmpp.mam.MamReference;
 public class DatabaseBackend extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "history";
-    private static final int DATABASE_VERSION = 49;
+    private static final int DATABASE_VERSION = 50;
 
     private static boolean requiresMessageIndexRebuild = false;
     private static DatabaseBackend instance = null;
+    private static final ScheduledExecutorService PENDING_MESSAGES_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
     private static final String CREATE_CONTATCS_STATEMENT = "create table "
             + Contact.TABLENAME + "(" + Contact.ACCOUNT + " TEXT, "
             + Contact.SERVERNAME + " TEXT, " + Contact.SYSTEMNAME + " TEXT,"
@@ -170,6 +175,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
 
     private static final String CREATE_MESSAGE_TIME_INDEX = "CREATE INDEX message_time_index ON " + Message.TABLENAME + "(" + Message.TIME_SENT + ")";
     private static final String CREATE_MESSAGE_CONVERSATION_INDEX = "CREATE INDEX message_conversation_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + ")";
+    private static final String CREATE_MESSAGE_CONVERSATION_TIME_INDEX = "CREATE INDEX message_conversation_time_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + ")";
     private static final String CREATE_MESSAGE_DELETED_INDEX = "CREATE INDEX message_deleted_index ON " + Message.TABLENAME + "(" + Message.DELETED + ")";
     private static final String CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX = "CREATE INDEX message_file_path_index ON " + Message.TABLENAME + "(" + Message.RELATIVE_FILE_PATH + ")";
     private static final String CREATE_MESSAGE_TYPE_INDEX = "CREATE INDEX message_type_index ON " + Message.TABLENAME + "(" + Message.TYPE + ")";
@@ -178,10 +184,15 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     private static final String CREATE_MESSAGE_INSERT_TRIGGER = "CREATE TRIGGER after_message_insert AFTER INSERT ON " + Message.TABLENAME + " BEGIN INSERT INTO messages_index(rowid,uuid,body) VALUES(NEW.rowid,NEW.uuid,NEW.body); END;";
     private static final String CREATE_MESSAGE_UPDATE_TRIGGER = "CREATE TRIGGER after_message_update UPDATE OF uuid,body ON " + Message.TABLENAME + " BEGIN UPDATE messages_index SET body=NEW.body,uuid=NEW.uuid WHERE rowid=OLD.rowid; END;";
     private static final String CREATE_MESSAGE_DELETE_TRIGGER = "CREATE TRIGGER after_message_delete AFTER DELETE ON " + Message.TABLENAME + " BEGIN DELETE FROM messages_index WHERE rowid=OLD.rowid; END;";
+    private static final String SEARCHABLE_MESSAGES_SELECTION = Message.ENCRYPTION + " NOT IN(" + Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE + "," + Message.ENCRYPTION_PGP + "," + Message.ENCRYPTION_DECRYPTION_FAILED + "," + Message.ENCRYPTION_AXOLOTL_FAILED + ") AND " + Message.TYPE + " IN(" + Message.TYPE_TEXT + "," + Message.TYPE_PRIVATE + ")";
     private static final String COPY_PREEXISTING_ENTRIES = "INSERT INTO messages_index(messages_index) VALUES('rebuild');";
 
+    private final LinkedHashMap<String, PendingMessageWrite> pendingMessageWrites = new LinkedHashMap<>();
+
     private DatabaseBackend(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        //allows the messages of several conversations to be restored in parallel
+        setWriteAheadLoggingEnabled(true);
     }
 
     private static ContentValues createFingerprintStatusContentValues(FingerprintStatus.Trust trust, boolean active) {
@@ -263,7 +274,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
                 + Conversation.TABLENAME + "(" + Conversation.UUID
                 + ") ON DELETE CASCADE);");
         db.execSQL(CREATE_MESSAGE_TIME_INDEX);
-        db.execSQL(CREATE_MESSAGE_CONVERSATION_INDEX);
+        db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
         db.execSQL(CREATE_MESSAGE_DELETED_INDEX);
         db.execSQL(CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX);
         db.execSQL(CREATE_MESSAGE_TYPE_INDEX);
@@ -589,6 +600,10 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             db.endTransaction();
             requiresMessageIndexRebuild = true;
         }
+        if (oldVersion < 50 && newVersion >= 50) {
+            db.execSQL("DROP INDEX IF EXISTS message_conversation_index");
+            db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+        }
     }
 
     private void canonicalizeJids(SQLiteDatabase db) {
@@ -680,6 +695,165 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.insert(Message.TABLENAME, null, message.getContentValues());
     }
 
+    /**
+     * Queues the insertion of a message. Queued writes are committed in a single transaction once
+     * {@link Config#MESSAGE_WRITE_BATCH_SIZE} of them are pending, {@link Config#MESSAGE_WRITE_BATCH_DELAY}
+     * milliseconds after the first one was queued or when {@link #flushPendingMessages()} is called.
+     * Methods reading or deleting messages flush the queue first.
+     */
+    public void createMessageBatched(final Message message) {
+        createMessageBatched(message, null);
+    }
+
+    /**
+     * Queues the insertion of a message and runs the given callback once the batch containing the
+     * message has been committed. Callbacks run one after another on the thread that schedules the
+     * delayed flushes, never on the thread that happened to trigger the flush.
+     */
+    public void createMessageBatched(final Message message, final Runnable onCommitted) {
+        queueMessageWrite(message, true, true, onCommitted);
+    }
+
+    /**
+     * Queues an update of a message. Updates of a message that is still queued are folded into
+     * the pending write.
+     */
+    public void updateMessageBatched(final Message message, final boolean includeBody) {
+        queueMessageWrite(message, false, includeBody, null);
+    }
+
+    private void queueMessageWrite(final Message message, final boolean insert, final boolean includeBody, final Runnable onCommitted) {
+        final boolean flush;
+        synchronized (pendingMessageWrites) {
+            final PendingMessageWrite pending = pendingMessageWrites.get(message.getUuid());
+            if (pending == null) {
+                final PendingMessageWrite write = new PendingMessageWrite(message, insert, includeBody);
+                if (onCommitted != null) {
+                    write.onCommitted.add(onCommitted);
+                }
+                pendingMessageWrites.put(message.getUuid(), write);
+            } else {
+                pending.insert |= insert;
+                pending.includeBody |= includeBody;
+                if (onCommitted != null) {
+                    pending.onCommitted.add(onCommitted);
+                }
+            }
+            final int size = pendingMessageWrites.size();
+            flush = size >= Config.MESSAGE_WRITE_BATCH_SIZE;
+            if (size == 1 && pending == null) {
+                PENDING_MESSAGES_EXECUTOR.schedule(this::flushPendingMessages, Config.MESSAGE_WRITE_BATCH_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flush) {
+            flushPendingMessages();
+        }
+    }
+
+    private boolean hasPendingMessageWrite(final String uuid) {
+        synchronized (pendingMessageWrites) {
+            return pendingMessageWrites.containsKey(uuid);
+        }
+    }
+
+    /**
+     * Commits all queued message writes in one transaction and then schedules their commit
+     * callbacks. If the transaction fails the writes are queued again and retried after
+     * {@link Config#MESSAGE_WRITE_BATCH_DELAY} milliseconds.
+     */
+    public void flushPendingMessages() {
+        synchronized (pendingMessageWrites) {
+            if (pendingMessageWrites.isEmpty()) {
+                return;
+            }
+        }
+        final SQLiteDatabase db = this.getWritableDatabase();
+        final long start = SystemClock.elapsedRealtime();
+        final List<PendingMessageWrite> writes = new ArrayList<>();
+        try {
+            //the transaction is started before the queue is drained. a direct update of a message that
+            //has just been taken off the queue will block until the message has been inserted
+            db.beginTransaction();
+            try {
+                synchronized (pendingMessageWrites) {
+                    writes.addAll(pendingMessageWrites.values());
+                    pendingMessageWrites.clear();
+                }
+                for (final PendingMessageWrite write : writes) {
+                    if (write.insert) {
+                        db.insert(Message.TABLENAME, null, write.message.getContentValues());
+                    } else {
+                        final ContentValues contentValues = write.message.getContentValues();
+                        contentValues.remove(Message.UUID);
+                        if (!write.includeBody) {
+                            contentValues.remove(Message.BODY);
+                        }
+                        db.update(Message.TABLENAME, contentValues, Message.UUID + "=?", new String[]{write.message.getUuid()});
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (final RuntimeException e) {
+            Log.e(Config.LOGTAG, "unable to commit " + writes.size() + " message writes. retrying", e);
+            requeueMessageWrites(writes);
+            throw e;
+        }
+        if (writes.size() > 0) {
+            Log.d(Config.LOGTAG, "committed " + writes.size() + " message writes in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+        final List<Runnable> callbacks = new ArrayList<>();
+        for (final PendingMessageWrite write : writes) {
+            callbacks.addAll(write.onCommitted);
+        }
+        if (callbacks.size() > 0) {
+            PENDING_MESSAGES_EXECUTOR.execute(() -> {
+                for (final Runnable callback : callbacks) {
+                    try {
+                        callback.run();
+                    } catch (final RuntimeException e) {
+                        Log.e(Config.LOGTAG, "message commit callback failed", e);
+                    }
+                }
+            });
+        }
+    }
+
+    private void requeueMessageWrites(final List<PendingMessageWrite> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        synchronized (pendingMessageWrites) {
+            for (final PendingMessageWrite write : writes) {
+                final String uuid = write.message.getUuid();
+                final PendingMessageWrite pending = pendingMessageWrites.get(uuid);
+                if (pending == null) {
+                    pendingMessageWrites.put(uuid, write);
+                } else {
+                    pending.insert |= write.insert;
+                    pending.includeBody |= write.includeBody;
+                    pending.onCommitted.addAll(0, write.onCommitted);
+                }
+            }
+        }
+        PENDING_MESSAGES_EXECUTOR.schedule(this::flushPendingMessages, Config.MESSAGE_WRITE_BATCH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private static class PendingMessageWrite {
+
+        private final Message message;
+        private boolean insert;
+        private boolean includeBody;
+        private final List<Runnable> onCommitted = new ArrayList<>(1);
+
+        private PendingMessageWrite(final Message message, final boolean insert, final boolean includeBody) {
+            this.message = message;
+            this.insert = insert;
+            this.includeBody = includeBody;
+        }
+    }
+
     public void createAccount(Account account) {
         SQLiteDatabase db = this.getWritableDatabase();
         db.insert(Account.TABLENAME, null, account.getContentValues());
@@ -782,51 +956,91 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public ArrayList<Message> getMessages(Conversation conversation, int limit, long timestamp) {
-        ArrayList<Message> list = new ArrayList<>();
+        return getMessages(conversation, limit, timestamp, null);
+    }
+
+    /**
+     * Loads a page of messages that are older than the given position in (time sent, rowid) order.
+     * The page is returned in chronological order.
+     *
+     * @param timestamp time sent of the oldest message already loaded or -1 to load the newest page
+     * @param uuid      uuid of the oldest message already loaded. Used to break ties between
+     *                  messages with the same time sent. May be null.
+     */
+    public ArrayList<Message> getMessages(Conversation conversation, int limit, long timestamp, String uuid) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor;
+        final String selection;
+        final String[] selectionArgs;
         if (timestamp == -1) {
-            String[] selectionArgs = {conversation.getUuid()};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                    + "=?", selectionArgs, null, null, Message.TIME_SENT
-                    + " DESC", String.valueOf(limit));
+            selection = Message.CONVERSATION + "=?";
+            selectionArgs = new String[]{conversation.getUuid()};
+        } else if (uuid == null) {
+            selection = Message.CONVERSATION + "=? and " + Message.TIME_SENT + "<?";
+            selectionArgs = new String[]{conversation.getUuid(), Long.toString(timestamp)};
         } else {
-            String[] selectionArgs = {conversation.getUuid(),
-                    Long.toString(timestamp)};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                            + "=? and " + Message.TIME_SENT + "<?", selectionArgs,
-                    null, null, Message.TIME_SENT + " DESC",
-                    String.valueOf(limit));
+            selection = Message.CONVERSATION + "=? and (" + Message.TIME_SENT + "<? or (" + Message.TIME_SENT + "=? and rowid<(select rowid from " + Message.TABLENAME + " where " + Message.UUID + "=?)))";
+            final String time = Long.toString(timestamp);
+            selectionArgs = new String[]{conversation.getUuid(), time, time, uuid};
         }
+        final Cursor cursor = db.query(Message.TABLENAME, null, selection, selectionArgs, null, null, Message.TIME_SENT + " DESC, rowid DESC", String.valueOf(limit));
         CursorUtils.upgradeCursorWindowSize(cursor);
-        while (cursor.moveToNext()) {
-            try {
-                list.add(0, Message.fromCursor(cursor, conversation));
-            } catch (Exception e) {
-                Log.e(Config.LOGTAG, "unable to restore message");
-            }
+        final ArrayList<Message> list = new ArrayList<>(cursor.getCount());
+        if (cursor.moveToLast()) {
+            do {
+                try {
+                    list.add(Message.fromCursor(cursor, conversation));
+                } catch (Exception e) {
+                    Log.e(Config.LOGTAG, "unable to restore message");
+                }
+            } while (cursor.moveToPrevious());
         }
         cursor.close();
         return list;
     }
 
-    public Cursor getMessageSearchCursor(final List<String> term, final String uuid) {
+    /**
+     * @return a cursor over the rowid and the FTS4 matchinfo ('pcnalx') of every searchable
+     * message that matches the term
+     */
+    public Cursor getMessageSearchRankCursor(final List<String> term, final String uuid) {
+        flushPendingMessages();
         final SQLiteDatabase db = this.getReadableDatabase();
         final StringBuilder SQL = new StringBuilder();
         final String[] selectionArgs;
-        SQL.append("SELECT " + Message.TABLENAME + ".*," + Conversation.TABLENAME + "." + Conversation.CONTACTJID + "," + Conversation.TABLENAME + "." + Conversation.ACCOUNT + "," + Conversation.TABLENAME + "." + Conversation.MODE + " FROM " + Message.TABLENAME + " JOIN " + Conversation.TABLENAME + " ON " + Message.TABLENAME + "." + Message.CONVERSATION + "=" + Conversation.TABLENAME + "." + Conversation.UUID + " JOIN messages_index ON messages_index.rowid=messages.rowid WHERE " + Message.ENCRYPTION + " NOT IN(" + Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE + "," + Message.ENCRYPTION_PGP + "," + Message.ENCRYPTION_DECRYPTION_FAILED + "," + Message.ENCRYPTION_AXOLOTL_FAILED + ") AND " + Message.TYPE + " IN(" + Message.TYPE_TEXT + "," + Message.TYPE_PRIVATE + ") AND messages_index.body MATCH ?");
+        SQL.append("SELECT " + Message.TABLENAME + ".rowid,matchinfo(messages_index,'pcnalx') FROM messages_index JOIN " + Message.TABLENAME + " ON messages_index.rowid=" + Message.TABLENAME + ".rowid WHERE " + SEARCHABLE_MESSAGES_SELECTION + " AND messages_index.body MATCH ?");
         if (uuid == null) {
             selectionArgs = new String[]{FtsUtils.toMatchString(term)};
         } else {
             selectionArgs = new String[]{FtsUtils.toMatchString(term), uuid};
-            SQL.append(" AND " + Conversation.TABLENAME + '.' + Conversation.UUID + "=?");
+            SQL.append(" AND " + Message.TABLENAME + "." + Message.CONVERSATION + "=?");
         }
-        SQL.append(" ORDER BY " + Message.TIME_SENT + " DESC limit " + Config.MAX_SEARCH_RESULTS);
         Log.d(Config.LOGTAG, "search term: " + FtsUtils.toMatchString(term));
         return db.rawQuery(SQL.toString(), selectionArgs);
     }
 
+    /**
+     * @return a cursor over the messages with the given rowids, including their rowid and the
+     * contact jid, account and mode of their conversation
+     */
+    public Cursor getMessageSearchResultCursor(final Collection<Long> rowIds) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final StringBuilder SQL = new StringBuilder();
+        SQL.append("SELECT " + Message.TABLENAME + ".rowid," + Message.TABLENAME + ".*," + Conversation.TABLENAME + "." + Conversation.CONTACTJID + "," + Conversation.TABLENAME + "." + Conversation.ACCOUNT + "," + Conversation.TABLENAME + "." + Conversation.MODE + " FROM " + Message.TABLENAME + " JOIN " + Conversation.TABLENAME + " ON " + Message.TABLENAME + "." + Message.CONVERSATION + "=" + Conversation.TABLENAME + "." + Conversation.UUID + " WHERE " + Message.TABLENAME + ".rowid IN(");
+        boolean first = true;
+        for (final Long rowId : rowIds) {
+            if (!first) {
+                SQL.append(',');
+            }
+            SQL.append(rowId);
+            first = false;
+        }
+        SQL.append(')');
+        return db.rawQuery(SQL.toString(), null);
+    }
+
     public List<String> markFileAsDeleted(final File file, final boolean internal) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         String selection;
         String[] selectionArgs;
@@ -856,6 +1070,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void markFileAsDeleted(List<String> uuids) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final ContentValues contentValues = new ContentValues();
         final String where = Message.UUID + "=?";
@@ -869,6 +1084,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void markFilesAsChanged(List<FilePathInfo> files) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final String where = Message.UUID + "=?";
         db.beginTransaction();
@@ -882,6 +1098,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public List<FilePathInfo> getFilePathInfo() {
+        flushPendingMessages();
         final SQLiteDatabase db = this.getReadableDatabase();
         final Cursor cursor = db.query(Message.TABLENAME, new String[]{Message.UUID, Message.RELATIVE_FILE_PATH, Message.DELETED}, "type in (1,2,5) and " + Message.RELATIVE_FILE_PATH + " is not null", null, null, null, null);
         final List<FilePathInfo> list = new ArrayList<>();
@@ -895,6 +1112,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public List<FilePath> getRelativeFilePaths(String account, Jid jid, int limit) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final String SQL = "select uuid,relativeFilePath from messages where type in (1,2,5) and deleted=0 and " + Message.RELATIVE_FILE_PATH + " is not null and conversationUuid=(select uuid from conversations where accountUuid=? and (contactJid=? or contactJid like ?)) order by timeSent desc";
         final String[] args = {account, jid.toString(), jid.toString() + "/%"};
@@ -1012,6 +1230,10 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public boolean updateMessage(Message message, boolean includeBody) {
+        if (hasPendingMessageWrite(message.getUuid())) {
+            updateMessageBatched(message, includeBody);
+            return true;
+        }
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {message.getUuid()};
         ContentValues contentValues = message.getContentValues();
@@ -1023,6 +1245,9 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public boolean updateMessage(Message message, String uuid) {
+        if (hasPendingMessageWrite(uuid)) {
+            flushPendingMessages();
+        }
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {uuid};
         return db.update(Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
@@ -1061,27 +1286,50 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted roster in " + duration + "ms");
     }
 
-    public void deleteMessagesInConversation(Conversation conversation) {
+    /**
+     * @return the uuids of the deleted messages that had files attached
+     */
+    public List<String> deleteMessagesInConversation(Conversation conversation) {
+        flushPendingMessages();
         long start = SystemClock.elapsedRealtime();
         final SQLiteDatabase db = this.getWritableDatabase();
         db.beginTransaction();
         final String[] args = {conversation.getUuid()};
+        final List<String> files = getFileMessageUuids(db, Message.CONVERSATION + "=?", args);
         int num = db.delete(Message.TABLENAME, Message.CONVERSATION + "=?", args);
         db.setTransactionSuccessful();
         db.endTransaction();
         Log.d(Config.LOGTAG, "deleted " + num + " messages for " + conversation.getJid().asBareJid() + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        return files;
     }
 
-    public void expireOldMessages(long timestamp) {
+    /**
+     * @return the uuids of the expired messages that had files attached
+     */
+    public List<String> expireOldMessages(long timestamp) {
+        flushPendingMessages();
         final String[] args = {String.valueOf(timestamp)};
         SQLiteDatabase db = this.getReadableDatabase();
         db.beginTransaction();
+        final List<String> files = getFileMessageUuids(db, "timeSent<?", args);
         db.delete(Message.TABLENAME, "timeSent<?", args);
         db.setTransactionSuccessful();
         db.endTransaction();
+        return files;
+    }
+
+    private static List<String> getFileMessageUuids(final SQLiteDatabase db, final String selection, final String[] args) {
+        final List<String> uuids = new ArrayList<>();
+        try (final Cursor cursor = db.query(Message.TABLENAME, new String[]{Message.UUID}, "(" + selection + ") and type in (1,2,5)", args, null, null, null)) {
+            while (cursor.moveToNext()) {
+                uuids.add(cursor.getString(0));
+            }
+        }
+        return uuids;
     }
 
     public MamReference getLastMessageReceived(Account account) {
+        flushPendingMessages();
         Cursor cursor = null;
         try {
             SQLiteDatabase db = this.getReadableDatabase();
@@ -1104,6 +1352,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public long getLastTimeFingerprintUsed(Account account, String fingerprint) {
+        flushPendingMessages();
         String SQL = "select messages.timeSent from accounts join conversations on accounts.uuid=conversations.accountUuid join messages on conversations.uuid=messages.conversationUuid where accounts.uuid=? and messages.axolotl_fingerprint=? order by messages.timesent desc limit 1";
         String[] args = {account.getUuid(), fingerprint};
         Cursor cursor = getReadableDatabase().rawQuery(SQL, args);
@@ -1136,34 +1385,30 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return maxClearDate;
     }
 
-    private Cursor getCursorForSession(Account account, SignalProtocolAddress contact) {
-        final SQLiteDatabase db = this.getReadableDatabase();
-        String[] selectionArgs = {account.getUuid(),
+    /**
+     * @return the serialized session record or null if there is no session. Records are stored as
+     * blobs; records written by older versions are stored as Base64 text and decoded.
+     */
+    public byte[] loadSerializedSession(Account account, SignalProtocolAddress contact) {
+        final String[] columns = {SQLiteAxolotlStore.KEY};
+        final String[] selectionArgs = {account.getUuid(),
                 contact.getName(),
                 Integer.toString(contact.getDeviceId())};
-        return db.query(SQLiteAxolotlStore.SESSION_TABLENAME,
-                null,
+        try (final Cursor cursor = getReadableDatabase().query(SQLiteAxolotlStore.SESSION_TABLENAME,
+                columns,
                 SQLiteAxolotlStore.ACCOUNT + " = ? AND "
                         + SQLiteAxolotlStore.NAME + " = ? AND "
                         + SQLiteAxolotlStore.DEVICE_ID + " = ? ",
                 selectionArgs,
-                null, null, null);
-    }
-
-    public SessionRecord loadSession(Account account, SignalProtocolAddress contact) {
-        SessionRecord session = null;
-        Cursor cursor = getCursorForSession(account, contact);
-        if (cursor.getCount() != 0) {
-            cursor.moveToFirst();
-            try {
-                session = new SessionRecord(Base64.decode(cursor.getString(cursor.getColumnIndex(SQLiteAxolotlStore.KEY)), Base64.DEFAULT));
-            } catch (IOException e) {
-                cursor.close();
-                throw new AssertionError(e);
+                null, null, null)) {
+            if (!cursor.moveToFirst()) {
+                return null;
             }
+            if (cursor.getType(0) == Cursor.FIELD_TYPE_BLOB) {
+                return cursor.getBlob(0);
+            }
+            return Base64.decode(cursor.getString(0), Base64.DEFAULT);
         }
-        cursor.close();
-        return session;
     }
 
     public List<Integer> getSubDeviceSessions(Account account, SignalProtocolAddress contact) {
@@ -1209,26 +1454,30 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return addresses;
     }
 
-    public boolean containsSession(Account account, SignalProtocolAddress contact) {
-        Cursor cursor = getCursorForSession(account, contact);
-        int count = cursor.getCount();
-        cursor.close();
-        return count != 0;
-    }
-
-    public void storeSession(Account account, SignalProtocolAddress contact, SessionRecord session) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(SQLiteAxolotlStore.NAME, contact.getName());
-        values.put(SQLiteAxolotlStore.DEVICE_ID, contact.getDeviceId());
-        values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(session.serialize(), Base64.DEFAULT));
-        values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
-        db.insert(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
-    }
-
-    public void deleteSession(Account account, SignalProtocolAddress contact) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        deleteSession(db, account, contact);
+    /**
+     * Stores or, for empty records, deletes the given sessions in one transaction.
+     */
+    public void storeSessions(Account account, Map<SignalProtocolAddress, byte[]> sessions) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final Map.Entry<SignalProtocolAddress, byte[]> entry : sessions.entrySet()) {
+                final SignalProtocolAddress contact = entry.getKey();
+                if (entry.getValue().length == 0) {
+                    deleteSession(db, account, contact);
+                } else {
+                    final ContentValues values = new ContentValues();
+                    values.put(SQLiteAxolotlStore.NAME, contact.getName());
+                    values.put(SQLiteAxolotlStore.DEVICE_ID, contact.getDeviceId());
+                    values.put(SQLiteAxolotlStore.KEY, entry.getValue());
+                    values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
+                    db.insert(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     private void deleteSession(SQLiteDatabase db, Account account, SignalProtocolAddress contact) {
@@ -1661,6 +1910,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public List<ShortcutService.FrequentContact> getFrequentContacts(int days) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final String SQL = "select " + Conversation.TABLENAME + "." + Conversation.ACCOUNT + "," + Conversation.TABLENAME + "." + Conversation.CONTACTJID + " from " + Conversation.TABLENAME + " join " + Message.TABLENAME + " on conversations.uuid=messages.conversationUuid where messages.status!=0 and carbon==0  and conversations.mode=0 and messages.timeSent>=? group by conversations.uuid order by count(body) desc limit 4;";
         String[] whereArgs = new String[]{String.valueOf(System.currentTimeMillis() - (Config.MILLISECONDS_IN_DAY * days))};
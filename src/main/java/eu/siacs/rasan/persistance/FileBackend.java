@@ -69,21 +69,28 @@ import eu.siacs.rasan.utils.Compatibility;
 import eu.siacs.rasan.utils.CryptoHelper;
 import eu.siacs.rasan.utils.FileUtils;
 import eu.siacs.rasan.utils.FileWriterException;
+import eu.siacs.rasan.utils.LoadCoalescer;
 import eu.siacs.rasan.utils.MimeUtils;
 import eu.siacs.rasan.xmpp.pep.Avatar;
 
 public class FileBackend {
 
-    private static final Object THUMBNAIL_LOCK = new Object();
+    private static final LoadCoalescer<String, Bitmap> THUMBNAIL_LOADS = new LoadCoalescer<>();
 
     private static final SimpleDateFormat IMAGE_DATE_FORMAT = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
 
     private static final String FILE_PROVIDER = ".files";
     private static final float IGNORE_PADDING = 0.15f;
     private final XmppConnectionService mXmppConnectionService;
+    private final BitmapDiskCache bitmapDiskCache;
 
     public FileBackend(XmppConnectionService service) {
         this.mXmppConnectionService = service;
+        this.bitmapDiskCache = new BitmapDiskCache(service, Config.BITMAP_DISK_CACHE_SIZE);
+    }
+
+    public BitmapDiskCache getBitmapDiskCache() {
+        return this.bitmapDiskCache;
     }
 
     private static boolean isInDirectoryThatShouldNotBeScanned(Context context, File file) {
@@ -426,30 +433,40 @@ public class FileBackend {
     public Bitmap getPreviewForUri(Attachment attachment, int size, boolean cacheOnly) {
         final String key = "attachment_" + attachment.getUuid().toString() + "_" + size;
         final LruCache<String, Bitmap> cache = mXmppConnectionService.getBitmapCache();
-        Bitmap bitmap = cache.get(key);
-        if (bitmap != null || cacheOnly) {
-            return bitmap;
+        final Bitmap cached = cache.get(key);
+        if (cached != null || cacheOnly) {
+            return cached;
         }
-        final String mime = attachment.getMime();
-        if ("application/pdf".equals(mime) && Compatibility.runsTwentyOne()) {
-            bitmap = cropCenterSquarePdf(attachment.getUri(), size);
-            drawOverlay(bitmap, paintOverlayBlackPdf(bitmap) ? R.drawable.open_pdf_black : R.drawable.open_pdf_white, 0.75f);
-        } else if (mime != null && mime.startsWith("video/")) {
-            bitmap = cropCenterSquareVideo(attachment.getUri(), size);
-            drawOverlay(bitmap, paintOverlayBlack(bitmap) ? R.drawable.play_video_black : R.drawable.play_video_white, 0.75f);
-        } else {
-            bitmap = cropCenterSquare(attachment.getUri(), size);
-            if (bitmap != null && "image/gif".equals(mime)) {
-                Bitmap withGifOverlay = bitmap.copy(Bitmap.Config.ARGB_8888, true);
-                drawOverlay(withGifOverlay, paintOverlayBlack(withGifOverlay) ? R.drawable.play_gif_black : R.drawable.play_gif_white, 1.0f);
-                bitmap.recycle();
-                bitmap = withGifOverlay;
-            }
-        }
-        if (bitmap != null) {
-            cache.put(key, bitmap);
+        try {
+            return THUMBNAIL_LOADS.load(key, () -> {
+                Bitmap bitmap = cache.get(key);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+                final String mime = attachment.getMime();
+                if ("application/pdf".equals(mime) && Compatibility.runsTwentyOne()) {
+                    bitmap = cropCenterSquarePdf(attachment.getUri(), size);
+                    drawOverlay(bitmap, paintOverlayBlackPdf(bitmap) ? R.drawable.open_pdf_black : R.drawable.open_pdf_white, 0.75f);
+                } else if (mime != null && mime.startsWith("video/")) {
+                    bitmap = cropCenterSquareVideo(attachment.getUri(), size);
+                    drawOverlay(bitmap, paintOverlayBlack(bitmap) ? R.drawable.play_video_black : R.drawable.play_video_white, 0.75f);
+                } else {
+                    bitmap = cropCenterSquare(attachment.getUri(), size);
+                    if (bitmap != null && "image/gif".equals(mime)) {
+                        Bitmap withGifOverlay = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+                        drawOverlay(withGifOverlay, paintOverlayBlack(withGifOverlay) ? R.drawable.play_gif_black : R.drawable.play_gif_white, 1.0f);
+                        bitmap.recycle();
+                        bitmap = withGifOverlay;
+                    }
+                }
+                if (bitmap != null) {
+                    cache.put(key, bitmap);
+                }
+                return bitmap;
+            });
+        } catch (final IOException e) {
+            return null;
         }
-        return bitmap;
     }
 
     private void createNoMedia(File diretory) {
@@ -858,37 +875,45 @@ public class FileBackend {
     public Bitmap getThumbnail(Message message, int size, boolean cacheOnly) throws IOException {
         final String uuid = message.getUuid();
         final LruCache<String, Bitmap> cache = mXmppConnectionService.getBitmapCache();
-        Bitmap thumbnail = cache.get(uuid);
-        if ((thumbnail == null) && (!cacheOnly)) {
-            synchronized (THUMBNAIL_LOCK) {
-                thumbnail = cache.get(uuid);
-                if (thumbnail != null) {
-                    return thumbnail;
+        final Bitmap thumbnail = cache.get(uuid);
+        if (thumbnail != null || cacheOnly) {
+            return thumbnail;
+        }
+        return THUMBNAIL_LOADS.load(uuid, () -> {
+            Bitmap bitmap = cache.get(uuid);
+            if (bitmap != null) {
+                return bitmap;
+            }
+            DownloadableFile file = getFile(message);
+            final String diskKey = "thumbnail\0" + size + "\0" + file.length() + "\0" + file.lastModified();
+            bitmap = bitmapDiskCache.get(uuid, diskKey);
+            if (bitmap != null) {
+                cache.put(uuid, bitmap);
+                return bitmap;
+            }
+            final String mime = file.getMimeType();
+            if ("application/pdf".equals(mime) && Compatibility.runsTwentyOne()) {
+                bitmap = getPdfDocumentPreview(file, size);
+            } else if (mime.startsWith("video/")) {
+                bitmap = getVideoPreview(file, size);
+            } else {
+                final Bitmap fullSize = getFullSizeImagePreview(file, size);
+                if (fullSize == null) {
+                    throw new FileNotFoundException();
                 }
-                DownloadableFile file = getFile(message);
-                final String mime = file.getMimeType();
-                if ("application/pdf".equals(mime) && Compatibility.runsTwentyOne()) {
-                    thumbnail = getPdfDocumentPreview(file, size);
-                } else if (mime.startsWith("video/")) {
-                    thumbnail = getVideoPreview(file, size);
-                } else {
-                    final Bitmap fullSize = getFullSizeImagePreview(file, size);
-                    if (fullSize == null) {
-                        throw new FileNotFoundException();
-                    }
-                    thumbnail = resize(fullSize, size);
-                    thumbnail = rotate(thumbnail, getRotation(file));
-                    if (mime.equals("image/gif")) {
-                        Bitmap withGifOverlay = thumbnail.copy(Bitmap.Config.ARGB_8888, true);
-                        drawOverlay(withGifOverlay, paintOverlayBlack(withGifOverlay) ? R.drawable.play_gif_black : R.drawable.play_gif_white, 1.0f);
-                        thumbnail.recycle();
-                        thumbnail = withGifOverlay;
-                    }
+                bitmap = resize(fullSize, size);
+                bitmap = rotate(bitmap, getRotation(file));
+                if (mime.equals("image/gif")) {
+                    Bitmap withGifOverlay = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+                    drawOverlay(withGifOverlay, paintOverlayBlack(withGifOverlay) ? R.drawable.play_gif_black : R.drawable.play_gif_white, 1.0f);
+                    bitmap.recycle();
+                    bitmap = withGifOverlay;
                 }
-                cache.put(uuid, thumbnail);
             }
-        }
-        return thumbnail;
+            cache.put(uuid, bitmap);
+            bitmapDiskCache.put(uuid, diskKey, bitmap);
+            return bitmap;
+        });
     }
 
     private Bitmap getFullSizeImagePreview(File file, int size) {
@@ -1147,8 +1172,11 @@ public class FileBackend {
     }
 
     public boolean isAvatarCached(Avatar avatar) {
-        final File file = getAvatarFile(avatar.getFilename());
-        return file.exists();
+        return isAvatarCached(avatar.getFilename());
+    }
+
+    public boolean isAvatarCached(final String avatar) {
+        return avatar != null && getAvatarFile(avatar).exists();
     }
 
     public boolean save(final Avatar avatar) {
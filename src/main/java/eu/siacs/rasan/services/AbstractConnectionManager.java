@@ -20,12 +20,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
 import eu.siacs.rasan.Config;
 import eu.siacs.rasan.R;
+import eu.siacs.rasan.crypto.FileCipher;
 import eu.siacs.rasan.entities.DownloadableFile;
 import eu.siacs.rasan.utils.Compatibility;
 import okhttp3.MediaType;
@@ -48,6 +50,11 @@ public class AbstractConnectionManager {
 
     public static InputStream upgrade(DownloadableFile file, InputStream is) {
         if (file.getKey() != null && file.getIv() != null) {
+            try {
+                return FileCipher.encrypt(is, file.getKey(), file.getIv());
+            } catch (final GeneralSecurityException e) {
+                Log.d(Config.LOGTAG, "unable to use platform cipher. falling back to BouncyCastle", e);
+            }
             AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
             cipher.init(true, new AEADParameters(new KeyParameter(file.getKey()), 128, file.getIv()));
             return new CipherInputStream(is, cipher);
@@ -79,7 +86,7 @@ public class AbstractConnectionManager {
                 long transmitted = 0;
                 try (final Source source = Okio.source(upgrade(file, new FileInputStream(file)))) {
                     long read;
-                    while ((read = source.read(sink.buffer(), 8196)) != -1) {
+                    while ((read = source.read(sink.buffer(), Config.FILE_TRANSFER_BUFFER_SIZE)) != -1) {
                         transmitted += read;
                         sink.flush();
                         progressListener.onProgress(transmitted);
@@ -104,6 +111,11 @@ public class AbstractConnectionManager {
             Log.d(Config.LOGTAG, "unable to create output stream", e);
             return null;
         }
+        try {
+            return FileCipher.decrypt(os, file.getKey(), file.getIv());
+        } catch (final GeneralSecurityException e) {
+            Log.d(Config.LOGTAG, "unable to use platform cipher. falling back to BouncyCastle", e);
+        }
         try {
             AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
             cipher.init(false, new AEADParameters(new KeyParameter(file.getKey()), 128, file.getIv()));
@@ -39,6 +39,8 @@ import eu.siacs.rasan.entities.Message;
 import eu.siacs.rasan.entities.MucOptions;
 import eu.siacs.rasan.entities.RawBlockable;
 import eu.siacs.rasan.entities.Room;
+import eu.siacs.rasan.persistance.BitmapDiskCache;
+import eu.siacs.rasan.persistance.FileBackend;
 import eu.siacs.rasan.utils.UIHelper;
 import eu.siacs.rasan.xmpp.Jid;
 import eu.siacs.rasan.xmpp.OnAdvancedStreamFeaturesLoaded;
@@ -365,6 +367,71 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	}
 
 	private Bitmap getImpl(List<MucOptions.User> users, int size) {
+		final BitmapDiskCache diskCache = mXmppConnectionService.getFileBackend().getBitmapDiskCache();
+		final String diskKey = diskKey(users, size);
+		Bitmap bitmap = diskKey == null ? null : diskCache.get(diskKey);
+		if (bitmap == null) {
+			bitmap = drawTiles(users, size);
+			if (diskKey != null) {
+				diskCache.put(diskKey, bitmap);
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * @return a key that describes what the tiles are drawn from or null if a tile is drawn from
+	 * a profile photo, which can change without its uri changing
+	 */
+	private String diskKey(List<MucOptions.User> users, int size) {
+		final int count = users.size();
+		final StringBuilder builder = new StringBuilder("tiles\0");
+		builder.append(count > 4 ? "more" : String.valueOf(count));
+		final int drawn = count > 4 ? 3 : count;
+		for (int i = 0; i < drawn; ++i) {
+			final String source = getTileSource(users.get(i));
+			if (source == null) {
+				return null;
+			}
+			builder.append('\0').append(source);
+		}
+		if (count == 1) {
+			builder.append('\0').append(getTileSource(users.get(0).getAccount()));
+		}
+		builder.append('\0').append(size);
+		return builder.toString();
+	}
+
+	private String getTileSource(MucOptions.User user) {
+		final FileBackend fileBackend = mXmppConnectionService.getFileBackend();
+		final Contact contact = user.getContact();
+		if (contact != null) {
+			final String avatar;
+			if (contact.getAvatarFilename() != null && QuickConversationsService.isQuicksy()) {
+				avatar = contact.getAvatarFilename();
+			} else if (contact.getProfilePhoto() != null) {
+				return null;
+			} else {
+				avatar = contact.getAvatarFilename();
+			}
+			if (fileBackend.isAvatarCached(avatar)) {
+				return "avatar\0" + avatar;
+			}
+			return "name\0" + contact.getDisplayName() + "\0" + contact.getJid().asBareJid();
+		} else if (fileBackend.isAvatarCached(user.getAvatar())) {
+			return "avatar\0" + user.getAvatar();
+		}
+		return "name\0" + user.getName() + "\0" + emptyOnNull(user.getRealJid() == null ? null : user.getRealJid().asBareJid());
+	}
+
+	private String getTileSource(Account account) {
+		if (mXmppConnectionService.getFileBackend().isAvatarCached(account.getAvatar())) {
+			return "avatar\0" + account.getAvatar();
+		}
+		return "name\0" + account.getJid().asBareJid();
+	}
+
+	private Bitmap drawTiles(List<MucOptions.User> users, int size) {
 		int count = users.size();
 		Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
 		Canvas canvas = new Canvas(bitmap);
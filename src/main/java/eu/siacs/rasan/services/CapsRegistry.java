@@ -0,0 +1,101 @@
+package eu.siacs.rasan.services;
+
+import android.util.LruCache;
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import eu.siacs.rasan.Config;
+import eu.siacs.rasan.entities.Account;
+import eu.siacs.rasan.entities.Presence;
+import eu.siacs.rasan.entities.ServiceDiscoveryResult;
+import eu.siacs.rasan.xmpp.Jid;
+
+/**
+ * Entity capabilities that are known or being looked up, by hash and ver.
+ * <p>
+ * Only one disco#info request is in flight per hash and ver at a time. Presences that announce
+ * a ver which is being looked up are registered as waiting for it and are the only ones updated
+ * once the result arrives, instead of every presence of every contact. If the entity that was
+ * queried fails to answer, the next waiting entity is asked.
+ */
+public class CapsRegistry {
+
+    private final LruCache<Pair<String, String>, ServiceDiscoveryResult> cache = new LruCache<>(Config.CAPS_CACHE_SIZE);
+    private final HashMap<Pair<String, String>, List<Waiter>> lookups = new HashMap<>();
+
+    public ServiceDiscoveryResult get(final Pair<String, String> key) {
+        return cache.get(key);
+    }
+
+    public void put(final Pair<String, String> key, final ServiceDiscoveryResult result) {
+        cache.put(key, result);
+    }
+
+    /**
+     * Registers a presence as waiting for the result of a lookup.
+     *
+     * @return true if no lookup is in flight for the key and the caller has to query the entity
+     */
+    public synchronized boolean await(final Pair<String, String> key, final Account account, final Jid jid, final Presence presence) {
+        List<Waiter> waiters = lookups.get(key);
+        final boolean start = waiters == null;
+        if (start) {
+            waiters = new ArrayList<>();
+            lookups.put(key, waiters);
+        }
+        waiters.add(new Waiter(account, jid, presence));
+        return start;
+    }
+
+    /**
+     * Caches the result of a lookup and ends it.
+     *
+     * @return the presences that have been waiting for the result
+     */
+    public synchronized List<Waiter> complete(final Pair<String, String> key, final ServiceDiscoveryResult result) {
+        cache.put(key, result);
+        final List<Waiter> waiters = lookups.remove(key);
+        return waiters == null ? new ArrayList<>() : waiters;
+    }
+
+    /**
+     * Removes the entity that failed to answer a lookup from its waiters.
+     *
+     * @return the next entity to query or null if none is left and the lookup has ended
+     */
+    public synchronized Waiter retry(final Pair<String, String> key, final Account account, final Jid jid) {
+        final List<Waiter> waiters = lookups.get(key);
+        if (waiters == null) {
+            return null;
+        }
+        for (int i = waiters.size() - 1; i >= 0; --i) {
+            final Waiter waiter = waiters.get(i);
+            if (waiter.account == account && waiter.jid.equals(jid)) {
+                waiters.remove(i);
+            }
+        }
+        for (final Waiter waiter : waiters) {
+            if (waiter.account.isOnlineAndConnected()) {
+                return waiter;
+            }
+        }
+        lookups.remove(key);
+        return null;
+    }
+
+    public static class Waiter {
+
+        public final Account account;
+        public final Jid jid;
+        public final Presence presence;
+
+        private Waiter(final Account account, final Jid jid, final Presence presence) {
+            this.account = account;
+            this.jid = jid;
+            this.presence = presence;
+        }
+    }
+}
@@ -341,6 +341,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
     }
 
     private void processFin(Query query, Element fin) {
+        mXmppConnectionService.databaseBackend.flushPendingMessages();
         boolean complete = fin.getAttributeAsBoolean("complete");
         Element set = fin.findChild("set", "http://jabber.org/protocol/rsm");
         Element last = set == null ? null : set.findChild("last");
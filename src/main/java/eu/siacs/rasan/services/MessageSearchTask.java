@@ -33,9 +33,14 @@ import android.database.Cursor;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.google.common.base.Objects;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 import eu.siacs.rasan.Config;
 import eu.siacs.rasan.entities.Account;
@@ -46,6 +51,7 @@ import eu.siacs.rasan.entities.Message;
 import eu.siacs.rasan.entities.StubConversation;
 import eu.siacs.rasan.ui.interfaces.OnSearchResultsAvailable;
 import eu.siacs.rasan.utils.Cancellable;
+import eu.siacs.rasan.utils.FtsUtils;
 import eu.siacs.rasan.utils.MessageUtils;
 import eu.siacs.rasan.utils.ReplacingSerialSingleThreadExecutor;
 import eu.siacs.rasan.xmpp.Jid;
@@ -54,12 +60,18 @@ public class MessageSearchTask implements Runnable, Cancellable {
 
 	private static final ReplacingSerialSingleThreadExecutor EXECUTOR = new ReplacingSerialSingleThreadExecutor(MessageSearchTask.class.getName());
 
+	private static final int BODY_COLUMN = 1;
+	private static final long REUSE_PREVIOUS_SEARCH_WINDOW = 30000;
+
+	//only accessed on EXECUTOR
+	private static PreviousSearch previousSearch = null;
+
 	private final XmppConnectionService xmppConnectionService;
 	private final List<String> term;
 	private final String uuid;
 	private final OnSearchResultsAvailable onSearchResultsAvailable;
 
-	private boolean isCancelled = false;
+	private volatile boolean isCancelled = false;
 
 	private MessageSearchTask(XmppConnectionService xmppConnectionService, List<String> term, final String uuid, OnSearchResultsAvailable onSearchResultsAvailable) {
 		this.xmppConnectionService = xmppConnectionService;
@@ -83,60 +95,117 @@ public class MessageSearchTask implements Runnable, Cancellable {
 
 	@Override
 	public void run() {
-		long startTimestamp = SystemClock.elapsedRealtime();
-		Cursor cursor = null;
+		final long startTimestamp = SystemClock.elapsedRealtime();
+		final PreviousSearch previous = previousSearch;
+		final boolean refinement = previous != null && previous.isRefinedBy(term, uuid);
+		if (refinement && previous.hits == 0) {
+			Log.d(Config.LOGTAG, "skipping search for refinement of term without results");
+			onSearchResultsAvailable.onSearchResultsAvailable(term, Collections.emptyList());
+			return;
+		}
 		try {
-			final HashMap<String, Conversational> conversationCache = new HashMap<>();
-			final List<Message> result = new ArrayList<>();
-			cursor = xmppConnectionService.databaseBackend.getMessageSearchCursor(term, uuid);
-			long dbTimer = SystemClock.elapsedRealtime();
-			if (isCancelled) {
+			final List<Hit> hits = rank();
+			if (hits == null) {
 				Log.d(Config.LOGTAG, "canceled search task");
 				return;
 			}
-			if (cursor != null && cursor.getCount() > 0) {
-				cursor.moveToLast();
-				final int indexBody = cursor.getColumnIndex(Message.BODY);
-				final int indexOob = cursor.getColumnIndex(Message.OOB);
-				final int indexConversation = cursor.getColumnIndex(Message.CONVERSATION);
-				final int indexAccount = cursor.getColumnIndex(Conversation.ACCOUNT);
-				final int indexContact = cursor.getColumnIndex(Conversation.CONTACTJID);
-				final int indexMode = cursor.getColumnIndex(Conversation.MODE);
-				do {
-					if (isCancelled) {
-						Log.d(Config.LOGTAG, "canceled search task");
-						return;
-					}
-					final String body = cursor.getString(indexBody);
-					final boolean oob = cursor.getInt(indexOob) > 0;
-					if (MessageUtils.treatAsDownloadable(body,oob)) {
-						continue;
-					}
-					final String conversationUuid = cursor.getString(indexConversation);
-					Conversational conversation = conversationCache.get(conversationUuid);
-					if (conversation == null) {
-						String accountUuid = cursor.getString(indexAccount);
-						String contactJid = cursor.getString(indexContact);
-						int mode = cursor.getInt(indexMode);
-						conversation = findOrGenerateStub(conversationUuid, accountUuid, contactJid, mode);
-						conversationCache.put(conversationUuid, conversation);
-					}
-					Message message = IndividualMessage.fromCursor(cursor, conversation);
-					result.add(message);
-				} while (cursor.moveToPrevious());
+			final long rankTimestamp = SystemClock.elapsedRealtime();
+			final Map<Long, Message> reusable = refinement ? previous.messages : Collections.emptyMap();
+			final HashMap<Long, Message> loaded = new HashMap<>();
+			final List<Message> result = new ArrayList<>();
+			for (int i = 0; i < hits.size(); i += Config.PAGE_SIZE) {
+				if (isCancelled) {
+					Log.d(Config.LOGTAG, "canceled search task");
+					return;
+				}
+				load(hits.subList(i, Math.min(hits.size(), i + Config.PAGE_SIZE)), reusable, loaded, result);
+				if (i == 0 && hits.size() > Config.PAGE_SIZE) {
+					onSearchResultsAvailable.onSearchResultsAvailable(term, sortedByTime(result));
+				}
 			}
-			long stopTimestamp = SystemClock.elapsedRealtime();
-			Log.d(Config.LOGTAG, "found " + result.size() + " messages in " + (stopTimestamp - startTimestamp) + "ms"+ " (db was "+(dbTimer - startTimestamp)+"ms)");
-			onSearchResultsAvailable.onSearchResultsAvailable(term, result);
+			final long stopTimestamp = SystemClock.elapsedRealtime();
+			Log.d(Config.LOGTAG, "found " + result.size() + " messages in " + (stopTimestamp - startTimestamp) + "ms" + " (ranking was " + (rankTimestamp - startTimestamp) + "ms, reused " + (refinement ? "" : "no ") + "previous results)");
+			previousSearch = new PreviousSearch(term, uuid, hits.size(), loaded);
+			onSearchResultsAvailable.onSearchResultsAvailable(term, sortedByTime(result));
 		} catch (Exception e) {
 			Log.d(Config.LOGTAG, "exception while searching ", e);
-		} finally {
-			if (cursor != null) {
-				cursor.close();
+		}
+	}
+
+	/**
+	 * Scores every match with bm25 and keeps the best {@link Config#MAX_SEARCH_RESULTS}.
+	 *
+	 * @return the best matches ordered by descending score or null if the task has been canceled
+	 */
+	private List<Hit> rank() {
+		final PriorityQueue<Hit> best = new PriorityQueue<>(Config.MAX_SEARCH_RESULTS + 1);
+		try (final Cursor cursor = xmppConnectionService.databaseBackend.getMessageSearchRankCursor(term, uuid)) {
+			while (cursor.moveToNext()) {
+				if (isCancelled) {
+					return null;
+				}
+				best.add(new Hit(cursor.getLong(0), FtsUtils.bm25(cursor.getBlob(1), BODY_COLUMN)));
+				if (best.size() > Config.MAX_SEARCH_RESULTS) {
+					best.poll();
+				}
+			}
+		}
+		final List<Hit> hits = new ArrayList<>(best);
+		Collections.sort(hits, Collections.reverseOrder());
+		return hits;
+	}
+
+	private void load(final List<Hit> hits, final Map<Long, Message> reusable, final Map<Long, Message> loaded, final List<Message> result) throws Exception {
+		final List<Long> missing = new ArrayList<>();
+		for (final Hit hit : hits) {
+			final Message message = reusable.get(hit.rowId);
+			if (message != null) {
+				loaded.put(hit.rowId, message);
+				result.add(message);
+			} else {
+				missing.add(hit.rowId);
+			}
+		}
+		if (missing.isEmpty()) {
+			return;
+		}
+		try (final Cursor cursor = xmppConnectionService.databaseBackend.getMessageSearchResultCursor(missing)) {
+			final HashMap<String, Conversational> conversationCache = new HashMap<>();
+			final int indexRowId = cursor.getColumnIndex("rowid");
+			final int indexBody = cursor.getColumnIndex(Message.BODY);
+			final int indexOob = cursor.getColumnIndex(Message.OOB);
+			final int indexConversation = cursor.getColumnIndex(Message.CONVERSATION);
+			final int indexAccount = cursor.getColumnIndex(Conversation.ACCOUNT);
+			final int indexContact = cursor.getColumnIndex(Conversation.CONTACTJID);
+			final int indexMode = cursor.getColumnIndex(Conversation.MODE);
+			while (cursor.moveToNext()) {
+				final String body = cursor.getString(indexBody);
+				final boolean oob = cursor.getInt(indexOob) > 0;
+				if (MessageUtils.treatAsDownloadable(body, oob)) {
+					continue;
+				}
+				final String conversationUuid = cursor.getString(indexConversation);
+				Conversational conversation = conversationCache.get(conversationUuid);
+				if (conversation == null) {
+					String accountUuid = cursor.getString(indexAccount);
+					String contactJid = cursor.getString(indexContact);
+					int mode = cursor.getInt(indexMode);
+					conversation = findOrGenerateStub(conversationUuid, accountUuid, contactJid, mode);
+					conversationCache.put(conversationUuid, conversation);
+				}
+				final Message message = IndividualMessage.fromCursor(cursor, conversation);
+				loaded.put(cursor.getLong(indexRowId), message);
+				result.add(message);
 			}
 		}
 	}
 
+	private static List<Message> sortedByTime(final List<Message> messages) {
+		final List<Message> sorted = new ArrayList<>(messages);
+		Collections.sort(sorted, (a, b) -> Long.compare(a.getTimeSent(), b.getTimeSent()));
+		return sorted;
+	}
+
 	private Conversational findOrGenerateStub(String conversationUuid, String accountUuid, String contactJid, int mode) throws Exception {
 		Conversation conversation = xmppConnectionService.findConversationByUuid(conversationUuid);
 		if (conversation != null) {
@@ -153,4 +222,44 @@ public class MessageSearchTask implements Runnable, Cancellable {
 	private void executeInBackground() {
 		EXECUTOR.execute(this);
 	}
+
+	private static class Hit implements Comparable<Hit> {
+
+		private final long rowId;
+		private final double score;
+
+		private Hit(long rowId, double score) {
+			this.rowId = rowId;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(Hit other) {
+			final int result = Double.compare(score, other.score);
+			//prefer newer messages if the score is the same
+			return result != 0 ? result : Long.compare(rowId, other.rowId);
+		}
+	}
+
+	private static class PreviousSearch {
+
+		private final List<String> term;
+		private final String uuid;
+		private final int hits;
+		private final Map<Long, Message> messages;
+		private final long timestamp = SystemClock.elapsedRealtime();
+
+		private PreviousSearch(List<String> term, String uuid, int hits, Map<Long, Message> messages) {
+			this.term = term;
+			this.uuid = uuid;
+			this.hits = hits;
+			this.messages = messages;
+		}
+
+		private boolean isRefinedBy(List<String> term, String uuid) {
+			return SystemClock.elapsedRealtime() - timestamp < REUSE_PREVIOUS_SEARCH_WINDOW
+					&& Objects.equal(this.uuid, uuid)
+					&& FtsUtils.isRefinement(this.term, term);
+		}
+	}
 }
@@ -65,6 +65,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
@@ -76,8 +77,11 @@ import java.util.WeakHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -95,13 +99,13 @@ import eu.siacs.rasan.entities.Blockable;
 import eu.siacs.rasan.entities.Bookmark;
 import eu.siacs.rasan.entities.Contact;
 import eu.siacs.rasan.entities.Conversation;
+import eu.siacs.rasan.entities.ConversationOrder;
 import eu.siacs.rasan.entities.Conversational;
 import eu.siacs.rasan.entities.Message;
 import eu.siacs.rasan.entities.MucOptions;
 import eu.siacs.rasan.entities.MucOptions.OnRenameListener;
 import eu.siacs.rasan.entities.Presence;
 import eu.siacs.rasan.entities.PresenceTemplate;
-import eu.siacs.rasan.entities.Roster;
 import eu.siacs.rasan.entities.ServiceDiscoveryResult;
 import eu.siacs.rasan.generator.AbstractGenerator;
 import eu.siacs.rasan.generator.IqGenerator;
@@ -186,6 +190,7 @@ public class XmppConnectionService extends Service {
     private static final String SETTING_LAST_ACTIVITY_TS = "last_activity_timestamp";
 
     public final CountDownLatch restoredFromDatabaseLatch = new CountDownLatch(1);
+    private static final int RESTORE_PARALLELISM = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
     private final static Executor FILE_OBSERVER_EXECUTOR = Executors.newSingleThreadExecutor();
     private final static Executor FILE_ATTACHMENT_EXECUTOR = Executors.newSingleThreadExecutor();
     private final static SerialSingleThreadExecutor VIDEO_COMPRESSION_EXECUTOR = new SerialSingleThreadExecutor("VideoCompression");
@@ -195,6 +200,7 @@ public class XmppConnectionService extends Service {
     private final ReplacingTaskManager mRosterSyncTaskManager = new ReplacingTaskManager();
     private final IBinder mBinder = new XmppConnectionBinder();
     private final List<Conversation> conversations = new CopyOnWriteArrayList<>();
+    private final ConversationOrder conversationOrder = new ConversationOrder();
     private final IqGenerator mIqGenerator = new IqGenerator(this);
     private final Set<String> mInProgressAvatarFetches = new HashSet<>();
     private final Set<String> mOmittedPepAvatarFetches = new HashSet<>();
@@ -376,7 +382,7 @@ public class XmppConnectionService extends Service {
     };
     private final AtomicLong mLastExpiryRun = new AtomicLong(0);
     private SecureRandom mRandom;
-    private final LruCache<Pair<String, String>, ServiceDiscoveryResult> discoCache = new LruCache<>(20);
+    private final CapsRegistry capsRegistry = new CapsRegistry();
     private final OnStatusChanged statusListener = new OnStatusChanged() {
 
         @Override
@@ -1068,7 +1074,7 @@ public class XmppConnectionService extends Service {
         mDatabaseWriterExecutor.execute(() -> {
             long timestamp = getAutomaticMessageDeletionDate();
             if (timestamp > 0) {
-                databaseBackend.expireOldMessages(timestamp);
+                evictPreviews(databaseBackend.expireOldMessages(timestamp));
                 synchronized (XmppConnectionService.this.conversations) {
                     for (Conversation conversation : XmppConnectionService.this.conversations) {
                         conversation.expireOldMessages(timestamp);
@@ -1269,6 +1275,15 @@ public class XmppConnectionService extends Service {
         }
         destroyed = false;
         fileObserver.stopWatching();
+        databaseBackend.flushPendingMessages();
+        if (accounts != null) {
+            for (final Account account : accounts) {
+                final AxolotlService axolotlService = account.getAxolotlService();
+                if (axolotlService != null) {
+                    axolotlService.flushSessions();
+                }
+            }
+        }
         super.onDestroy();
     }
 
@@ -1889,25 +1904,29 @@ public class XmppConnectionService extends Service {
                     iterator.remove();
                 }
             }
+            for (final Conversation conversation : this.conversations) {
+                conversationOrder.add(conversation);
+            }
             long diffConversationsRestore = SystemClock.elapsedRealtime() - startTimeConversationsRestore;
             Log.d(Config.LOGTAG, "finished restoring conversations in " + diffConversationsRestore + "ms");
             Runnable runnable = () -> {
-                if (DatabaseBackend.requiresMessageIndexRebuild()) {
-                    DatabaseBackend.getInstance(this).rebuildMessagesIndex();
-                }
                 final long deletionDate = getAutomaticMessageDeletionDate();
                 mLastExpiryRun.set(SystemClock.elapsedRealtime());
                 if (deletionDate > 0) {
                     Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(deletionDate));
-                    databaseBackend.expireOldMessages(deletionDate);
+                    final long startExpiry = SystemClock.elapsedRealtime();
+                    evictPreviews(databaseBackend.expireOldMessages(deletionDate));
+                    Log.d(Config.LOGTAG, "finished deleting old messages in " + (SystemClock.elapsedRealtime() - startExpiry) + "ms");
                 }
                 Log.d(Config.LOGTAG, "restoring roster...");
+                final long startRosterRestore = SystemClock.elapsedRealtime();
                 for (Account account : accounts) {
                     databaseBackend.readRoster(account.getRoster());
                     account.initAccountServices(XmppConnectionService.this); //roster needs to be loaded at this stage
                 }
                 getBitmapCache().evictAll();
                 loadPhoneContacts();
+                Log.d(Config.LOGTAG, "finished restoring roster in " + (SystemClock.elapsedRealtime() - startRosterRestore) + "ms");
                 Log.d(Config.LOGTAG, "restoring messages...");
                 final long startMessageRestore = SystemClock.elapsedRealtime();
                 final Conversation quickLoad = QuickLoader.get(this.conversations);
@@ -1917,21 +1936,54 @@ public class XmppConnectionService extends Service {
                     final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
                     Log.d(Config.LOGTAG, "quickly restored " + quickLoad.getName() + " after " + diffMessageRestore + "ms");
                 }
-                for (Conversation conversation : this.conversations) {
-                    if (quickLoad != conversation) {
-                        restoreMessages(conversation);
-                    }
-                }
+                final List<Conversation> remaining = new ArrayList<>(this.conversations);
+                remaining.remove(quickLoad);
+                restoreMessages(remaining);
                 mNotificationService.finishBacklog(false);
                 restoredFromDatabaseLatch.countDown();
                 final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
-                Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms");
+                Log.d(Config.LOGTAG, "finished restoring messages of " + this.conversations.size() + " conversations in " + diffMessageRestore + "ms");
                 updateConversationUi();
+                if (DatabaseBackend.requiresMessageIndexRebuild()) {
+                    DatabaseBackend.getInstance(this).rebuildMessagesIndex();
+                }
             };
             mDatabaseReaderExecutor.execute(runnable); //will contain one write command (expiry) but that's fine
         }
     }
 
+    /**
+     * Restores the most recent page of messages of each conversation using a small pool of
+     * readers. Each reader takes the next conversation in list order until none are left.
+     */
+    private void restoreMessages(final List<Conversation> conversations) {
+        final int parallelism = Math.min(RESTORE_PARALLELISM, conversations.size());
+        if (parallelism == 0) {
+            return;
+        }
+        final AtomicInteger next = new AtomicInteger(0);
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        for (int i = 0; i < parallelism; ++i) {
+            executor.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < conversations.size()) {
+                    final Conversation conversation = conversations.get(index);
+                    try {
+                        restoreMessages(conversation);
+                    } catch (final RuntimeException e) {
+                        Log.e(Config.LOGTAG, "unable to restore messages of " + conversation.getJid(), e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Log.d(Config.LOGTAG, "interrupted while restoring messages");
+        }
+    }
+
     private void restoreMessages(Conversation conversation) {
         conversation.addAll(0, databaseBackend.getMessages(conversation, Config.PAGE_SIZE));
         conversation.findUnsentTextMessages(message -> markMessage(message, Message.STATUS_WAITING));
@@ -1993,9 +2045,7 @@ public class XmppConnectionService extends Service {
         for (Conversation conversation : getConversations()) {
             deleted |= conversation.markAsDeleted(uuids);
         }
-        for (final String uuid : uuids) {
-            evictPreview(uuid);
-        }
+        evictPreviews(uuids);
         if (deleted) {
             updateConversationUi();
         }
@@ -2020,41 +2070,42 @@ public class XmppConnectionService extends Service {
     }
 
     public void populateWithOrderedConversations(final List<Conversation> list, final boolean includeNoFileUpload, final boolean sort) {
-        final List<String> orderedUuids;
+        final HashMap<Conversation, Integer> previousPositions;
         if (sort) {
-            orderedUuids = null;
+            previousPositions = null;
         } else {
-            orderedUuids = new ArrayList<>();
-            for (Conversation conversation : list) {
-                orderedUuids.add(conversation.getUuid());
+            previousPositions = new HashMap<>();
+            for (int i = 0; i < list.size(); ++i) {
+                previousPositions.put(list.get(i), i);
             }
         }
+        final List<Conversation> ordered = conversationOrder.get();
         list.clear();
         if (includeNoFileUpload) {
-            list.addAll(getConversations());
+            list.addAll(ordered);
         } else {
-            for (Conversation conversation : getConversations()) {
+            for (Conversation conversation : ordered) {
                 if (conversation.getMode() == Conversation.MODE_SINGLE
                         || (conversation.getAccount().httpUploadAvailable() && conversation.getMucOptions().participating())) {
                     list.add(conversation);
                 }
             }
         }
-        try {
-            if (orderedUuids != null) {
-                Collections.sort(list, (a, b) -> {
-                    final int indexA = orderedUuids.indexOf(a.getUuid());
-                    final int indexB = orderedUuids.indexOf(b.getUuid());
-                    if (indexA == -1 || indexB == -1 || indexA == indexB) {
-                        return a.compareTo(b);
-                    }
-                    return indexA - indexB;
-                });
-            } else {
-                Collections.sort(list);
+        if (previousPositions != null && !previousPositions.isEmpty()) {
+            //conversations that were listed before keep their relative order in the slots they occupy
+            final List<Conversation> known = new ArrayList<>();
+            for (Conversation conversation : list) {
+                if (previousPositions.containsKey(conversation)) {
+                    known.add(conversation);
+                }
+            }
+            Collections.sort(known, (a, b) -> Integer.compare(previousPositions.get(a), previousPositions.get(b)));
+            final Iterator<Conversation> iterator = known.iterator();
+            for (int i = 0; i < list.size(); ++i) {
+                if (previousPositions.containsKey(list.get(i))) {
+                    list.set(i, iterator.next());
+                }
             }
-        } catch (IllegalArgumentException e) {
-            //ignore
         }
     }
 
@@ -2067,7 +2118,9 @@ public class XmppConnectionService extends Service {
         Log.d(Config.LOGTAG, "load more messages for " + conversation.getName() + " prior to " + MessageGenerator.getTimestamp(timestamp));
         final Runnable runnable = () -> {
             final Account account = conversation.getAccount();
-            List<Message> messages = databaseBackend.getMessages(conversation, 50, timestamp);
+            final Message oldest = conversation.getFirstMessage();
+            final String uuid = oldest != null && oldest.getTimeSent() == timestamp ? oldest.getUuid() : null;
+            List<Message> messages = databaseBackend.getMessages(conversation, 50, timestamp, uuid);
             if (messages.size() > 0) {
                 conversation.addAll(0, messages);
                 callback.onMoreMessagesLoaded(messages.size(), conversation);
@@ -2232,6 +2285,7 @@ public class XmppConnectionService extends Service {
                 runnable.run();
             }
             this.conversations.add(conversation);
+            conversationOrder.add(conversation);
             updateConversationUi();
             return conversation;
         }
@@ -2269,6 +2323,7 @@ public class XmppConnectionService extends Service {
             }
             updateConversation(conversation);
             this.conversations.remove(conversation);
+            conversationOrder.remove(conversation);
             updateConversationUi();
         }
     }
@@ -2427,6 +2482,7 @@ public class XmppConnectionService extends Service {
                         }
                     }
                     conversations.remove(conversation);
+                    conversationOrder.remove(conversation);
                     mNotificationService.clear(conversation);
                 }
             }
@@ -3424,6 +3480,9 @@ public class XmppConnectionService extends Service {
 
     public void updateMessage(Message message, boolean includeBody) {
         databaseBackend.updateMessage(message, includeBody);
+        if (message.getConversation() instanceof Conversation) {
+            ((Conversation) message.getConversation()).invalidateOrder();
+        }
         updateConversationUi();
     }
 
@@ -4029,7 +4088,7 @@ public class XmppConnectionService extends Service {
         }
         message.setErrorMessage(errorMessage);
         message.setStatus(status);
-        databaseBackend.updateMessage(message, includeBody);
+        databaseBackend.updateMessageBatched(message, includeBody);
         updateConversationUi();
         if (oldStatus != status && status == Message.STATUS_SEND_FAILED) {
             mNotificationService.pushFailedDelivery(message);
@@ -4508,7 +4567,7 @@ public class XmppConnectionService extends Service {
         conversation.setHasMessagesLeftOnServer(false); //avoid messages getting loaded through mam
         conversation.setLastClearHistory(clearDate, reference);
         Runnable runnable = () -> {
-            databaseBackend.deleteMessagesInConversation(conversation);
+            evictPreviews(databaseBackend.deleteMessagesInConversation(conversation));
             databaseBackend.updateConversation(conversation);
         };
         mDatabaseWriterExecutor.execute(runnable);
@@ -4547,6 +4606,7 @@ public class XmppConnectionService extends Service {
                         && conversation.getMode() == Conversation.MODE_SINGLE
                         && jidMatches) {
                     this.conversations.remove(conversation);
+                    conversationOrder.remove(conversation);
                     markRead(conversation);
                     conversation.setStatus(Conversation.STATUS_ARCHIVED);
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": archiving conversation " + conversation.getJid().asBareJid() + " because jid was blocked");
@@ -4590,13 +4650,13 @@ public class XmppConnectionService extends Service {
     }
 
     public ServiceDiscoveryResult getCachedServiceDiscoveryResult(Pair<String, String> key) {
-        ServiceDiscoveryResult result = discoCache.get(key);
+        ServiceDiscoveryResult result = capsRegistry.get(key);
         if (result != null) {
             return result;
         } else {
             result = databaseBackend.findDiscoveryResult(key.first, key.second);
             if (result != null) {
-                discoCache.put(key, result);
+                capsRegistry.put(key, result);
             }
             return result;
         }
@@ -4611,48 +4671,53 @@ public class XmppConnectionService extends Service {
             if (contact.refreshRtpCapability()) {
                 syncRoster(account);
             }
+        } else if (capsRegistry.await(key, account, jid, presence)) {
+            sendCapsRequest(key, account, jid, presence.getNode());
         } else {
-            final IqPacket request = new IqPacket(IqPacket.TYPE.GET);
-            request.setTo(jid);
-            final String node = presence.getNode();
-            final String ver = presence.getVer();
-            final Element query = request.query(Namespace.DISCO_INFO);
-            if (node != null && ver != null) {
-                query.setAttribute("node", node + "#" + ver);
-            }
-            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": making disco request for " + key.second + " to " + jid);
-            sendIqPacket(account, request, (a, response) -> {
-                if (response.getType() == IqPacket.TYPE.RESULT) {
-                    final ServiceDiscoveryResult discoveryResult = new ServiceDiscoveryResult(response);
-                    if (presence.getVer().equals(discoveryResult.getVer())) {
-                        databaseBackend.insertDiscoveryResult(discoveryResult);
-                        injectServiceDiscoveryResult(a.getRoster(), presence.getHash(), presence.getVer(), discoveryResult);
-                    } else {
-                        Log.d(Config.LOGTAG, a.getJid().asBareJid() + ": mismatch in caps for contact " + jid + " " + presence.getVer() + " vs " + discoveryResult.getVer());
-                    }
-                } else {
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to fetch caps from " + jid);
-                }
-            });
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": disco request for " + key.second + " already in flight. " + jid + " waits for it");
         }
     }
 
-    private void injectServiceDiscoveryResult(Roster roster, String hash, String ver, ServiceDiscoveryResult disco) {
-        boolean rosterNeedsSync = false;
-        for (final Contact contact : roster.getContacts()) {
-            boolean serviceDiscoverySet = false;
-            for (final Presence presence : contact.getPresences().getPresences()) {
-                if (hash.equals(presence.getHash()) && ver.equals(presence.getVer())) {
-                    presence.setServiceDiscoveryResult(disco);
-                    serviceDiscoverySet = true;
+    private void sendCapsRequest(final Pair<String, String> key, final Account account, final Jid jid, final String node) {
+        final IqPacket request = new IqPacket(IqPacket.TYPE.GET);
+        request.setTo(jid);
+        final String ver = key.second;
+        final Element query = request.query(Namespace.DISCO_INFO);
+        if (node != null && ver != null) {
+            query.setAttribute("node", node + "#" + ver);
+        }
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": making disco request for " + ver + " to " + jid);
+        sendIqPacket(account, request, (a, response) -> {
+            if (response.getType() == IqPacket.TYPE.RESULT) {
+                final ServiceDiscoveryResult discoveryResult = new ServiceDiscoveryResult(response);
+                if (ver.equals(discoveryResult.getVer())) {
+                    databaseBackend.insertDiscoveryResult(discoveryResult);
+                    injectServiceDiscoveryResult(capsRegistry.complete(key, discoveryResult), discoveryResult);
+                    return;
+                } else {
+                    Log.d(Config.LOGTAG, a.getJid().asBareJid() + ": mismatch in caps for contact " + jid + " " + ver + " vs " + discoveryResult.getVer());
                 }
+            } else {
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to fetch caps from " + jid);
             }
-            if (serviceDiscoverySet) {
-                rosterNeedsSync |= contact.refreshRtpCapability();
+            final CapsRegistry.Waiter next = capsRegistry.retry(key, account, jid);
+            if (next != null) {
+                sendCapsRequest(key, next.account, next.jid, next.presence.getNode());
+            }
+        });
+    }
+
+    private void injectServiceDiscoveryResult(final List<CapsRegistry.Waiter> waiters, final ServiceDiscoveryResult disco) {
+        final HashSet<Account> rostersNeedingSync = new HashSet<>();
+        for (final CapsRegistry.Waiter waiter : waiters) {
+            waiter.presence.setServiceDiscoveryResult(disco);
+            final Contact contact = waiter.account.getRoster().getContact(waiter.jid);
+            if (contact.refreshRtpCapability()) {
+                rostersNeedingSync.add(waiter.account);
             }
         }
-        if (rosterNeedsSync) {
-            syncRoster(roster.getAccount());
+        for (final Account account : rostersNeedingSync) {
+            syncRoster(account);
         }
     }
 
@@ -4770,6 +4835,13 @@ public class XmppConnectionService extends Service {
         if (mBitmapCache.remove(uuid) != null) {
             Log.d(Config.LOGTAG, "deleted cached preview");
         }
+        fileBackend.getBitmapDiskCache().remove(uuid);
+    }
+
+    private void evictPreviews(final List<String> uuids) {
+        for (final String uuid : uuids) {
+            evictPreview(uuid);
+        }
     }
 
     public interface OnMamPreferencesFetched {
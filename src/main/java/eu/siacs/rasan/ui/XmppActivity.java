@@ -58,7 +58,6 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.RejectedExecutionException;
 
 import eu.siacs.rasan.Config;
 import eu.siacs.rasan.R;
@@ -75,6 +74,7 @@ import eu.siacs.rasan.services.QuickConversationsService;
 import eu.siacs.rasan.services.XmppConnectionService;
 import eu.siacs.rasan.services.XmppConnectionService.XmppConnectionBinder;
 import eu.siacs.rasan.ui.service.EmojiService;
+import eu.siacs.rasan.ui.util.BitmapLoader;
 import eu.siacs.rasan.ui.util.MenuDoubleTabUtil;
 import eu.siacs.rasan.ui.util.PresenceSelector;
 import eu.siacs.rasan.ui.util.SoftKeyboardUtils;
@@ -894,11 +894,7 @@ public abstract class XmppActivity extends ActionBarActivity {
                 final AsyncDrawable asyncDrawable = new AsyncDrawable(
                         getResources(), null, task);
                 imageView.setImageDrawable(asyncDrawable);
-                try {
-                    task.execute(message);
-                } catch (final RejectedExecutionException ignored) {
-                    ignored.printStackTrace();
-                }
+                BitmapLoader.execute(task, message);
             }
         }
     }
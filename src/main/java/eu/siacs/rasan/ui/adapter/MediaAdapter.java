@@ -21,7 +21,6 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.RejectedExecutionException;
 
 import eu.siacs.rasan.Config;
 import eu.siacs.rasan.R;
@@ -29,6 +28,7 @@ import eu.siacs.rasan.databinding.MediaBinding;
 import eu.siacs.rasan.services.ExportBackupService;
 import eu.siacs.rasan.ui.XmppActivity;
 import eu.siacs.rasan.ui.util.Attachment;
+import eu.siacs.rasan.ui.util.BitmapLoader;
 import eu.siacs.rasan.ui.util.StyledAttributes;
 import eu.siacs.rasan.ui.util.ViewUtil;
 
@@ -176,10 +176,7 @@ public class MediaAdapter extends RecyclerView.Adapter<MediaAdapter.MediaViewHol
                 final BitmapWorkerTask task = new BitmapWorkerTask(mediaSize, imageView);
                 final AsyncDrawable asyncDrawable = new AsyncDrawable(activity.getResources(), null, task);
                 imageView.setImageDrawable(asyncDrawable);
-                try {
-                    task.execute(attachment);
-                } catch (final RejectedExecutionException ignored) {
-                }
+                BitmapLoader.execute(task, attachment);
             }
         }
     }
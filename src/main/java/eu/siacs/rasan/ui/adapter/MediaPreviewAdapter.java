@@ -21,7 +21,6 @@ import androidx.recyclerview.widget.RecyclerView;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.RejectedExecutionException;
 
 import eu.siacs.rasan.R;
 import eu.siacs.rasan.databinding.MediaPreviewBinding;
@@ -29,6 +28,7 @@ import eu.siacs.rasan.persistance.FileBackend;
 import eu.siacs.rasan.ui.ConversationFragment;
 import eu.siacs.rasan.ui.XmppActivity;
 import eu.siacs.rasan.ui.util.Attachment;
+import eu.siacs.rasan.ui.util.BitmapLoader;
 
 public class MediaPreviewAdapter extends RecyclerView.Adapter<MediaPreviewAdapter.MediaPreviewViewHolder> {
 
@@ -101,10 +101,7 @@ public class MediaPreviewAdapter extends RecyclerView.Adapter<MediaPreviewAdapte
                 final BitmapWorkerTask task = new BitmapWorkerTask(imageView);
                 final AsyncDrawable asyncDrawable = new AsyncDrawable(conversationFragment.getActivity().getResources(), null, task);
                 imageView.setImageDrawable(asyncDrawable);
-                try {
-                    task.execute(attachment);
-                } catch (final RejectedExecutionException ignored) {
-                }
+                BitmapLoader.execute(task, attachment);
             }
         }
     }
@@ -15,6 +15,7 @@ import android.text.style.ForegroundColorSpan;
 import android.text.style.RelativeSizeSpan;
 import android.text.style.StyleSpan;
 import android.util.DisplayMetrics;
+import android.util.LruCache;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
@@ -29,9 +30,12 @@ import android.widget.Toast;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.regex.Matcher;
@@ -62,11 +66,13 @@ import eu.siacs.rasan.ui.util.MyLinkify;
 import eu.siacs.rasan.ui.util.QuoteHelper;
 import eu.siacs.rasan.ui.util.ViewUtil;
 import eu.siacs.rasan.ui.widget.ClickableMovementMethod;
+import eu.siacs.rasan.utils.Cancellable;
 import eu.siacs.rasan.utils.CryptoHelper;
 import eu.siacs.rasan.utils.EmojiWrapper;
 import eu.siacs.rasan.utils.Emoticons;
 import eu.siacs.rasan.utils.GeoHelper;
 import eu.siacs.rasan.utils.MessageUtils;
+import eu.siacs.rasan.utils.ReplacingSerialSingleThreadExecutor;
 import eu.siacs.rasan.utils.StylingHelper;
 import eu.siacs.rasan.utils.TimeFrameUtils;
 import eu.siacs.rasan.utils.UIHelper;
@@ -81,6 +87,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     private static final int STATUS = 2;
     private static final int DATE_SEPARATOR = 3;
     private static final int RTP_SESSION = 4;
+    private static final ReplacingSerialSingleThreadExecutor RENDER_EXECUTOR = new ReplacingSerialSingleThreadExecutor("MessageRendering");
     private final XmppActivity activity;
     private final AudioPlayer audioPlayer;
     private List<String> highlightedTerm = null;
@@ -88,6 +95,14 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     private OnContactPictureClicked mOnContactPictureClickedListener;
     private OnContactPictureLongClicked mOnContactPictureLongClickedListener;
     private boolean mUseGreenBackground = false;
+    private volatile int bodyTextColor = 0;
+    private volatile int bodyTextColorOnDark = 0;
+    private final LruCache<String, RenderedBody> renderedBodies = new LruCache<String, RenderedBody>(Config.MESSAGE_RENDER_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(final String uuid, final RenderedBody rendered) {
+            return rendered.size();
+        }
+    };
 
     public MessageAdapter(XmppActivity activity, List<Message> messages) {
         super(activity, 0, messages);
@@ -425,76 +440,22 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         viewHolder.messageBody.setTypeface(null, Typeface.NORMAL);
 
         if (message.getBody() != null) {
-            final String nick = UIHelper.getMessageDisplayName(message);
-            SpannableStringBuilder body = message.getMergedBody();
-            boolean hasMeCommand = message.hasMeCommand();
-            if (hasMeCommand) {
-                body = body.replace(0, Message.ME_COMMAND.length(), nick + " ");
-            }
-            if (body.length() > Config.MAX_DISPLAY_MESSAGE_CHARS) {
-                body = new SpannableStringBuilder(body, 0, Config.MAX_DISPLAY_MESSAGE_CHARS);
-                body.append("\u2026");
-            }
-            Message.MergeSeparator[] mergeSeparators = body.getSpans(0, body.length(), Message.MergeSeparator.class);
-            for (Message.MergeSeparator mergeSeparator : mergeSeparators) {
-                int start = body.getSpanStart(mergeSeparator);
-                int end = body.getSpanEnd(mergeSeparator);
-                body.setSpan(new DividerSpan(true), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            boolean startsWithQuote = handleTextQuotes(body, darkBackground);
-            if (!message.isPrivateMessage()) {
-                if (hasMeCommand) {
-                    body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), 0, nick.length(),
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
+            final RenderKey key = getRenderKey(message, darkBackground, viewHolder.messageBody.getCurrentTextColor(), highlightedTerm);
+            if (darkBackground) {
+                bodyTextColorOnDark = key.textColor;
             } else {
-                String privateMarker;
-                if (message.getStatus() <= Message.STATUS_RECEIVED) {
-                    privateMarker = activity.getString(R.string.private_message);
-                } else {
-                    Jid cp = message.getCounterpart();
-                    privateMarker = activity.getString(R.string.private_message_to, Strings.nullToEmpty(cp == null ? null : cp.getResource()));
-                }
-                body.insert(0, privateMarker);
-                int privateMarkerIndex = privateMarker.length();
-                if (startsWithQuote) {
-                    body.insert(privateMarkerIndex, "\n\n");
-                    body.setSpan(new DividerSpan(false), privateMarkerIndex, privateMarkerIndex + 2,
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                } else {
-                    body.insert(privateMarkerIndex, " ");
-                }
-                body.setSpan(new ForegroundColorSpan(getMessageTextColor(darkBackground, false)), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                body.setSpan(new StyleSpan(Typeface.BOLD), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                if (hasMeCommand) {
-                    body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), privateMarkerIndex + 1,
-                            privateMarkerIndex + 1 + nick.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
-            }
-            if (message.getConversation().getMode() == Conversation.MODE_MULTI && message.getStatus() == Message.STATUS_RECEIVED) {
-                if (message.getConversation() instanceof Conversation) {
-                    final Conversation conversation = (Conversation) message.getConversation();
-                    Pattern pattern = NotificationService.generateNickHighlightPattern(conversation.getMucOptions().getActualNick());
-                    Matcher matcher = pattern.matcher(body);
-                    while (matcher.find()) {
-                        body.setSpan(new StyleSpan(Typeface.BOLD), matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    }
-                }
+                bodyTextColor = key.textColor;
             }
-            Matcher matcher = Emoticons.getEmojiPattern(body).matcher(body);
-            while (matcher.find()) {
-                if (matcher.start() < matcher.end()) {
-                    body.setSpan(new RelativeSizeSpan(1.2f), matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
-            }
-
-            StylingHelper.format(body, viewHolder.messageBody.getCurrentTextColor());
-            if (highlightedTerm != null) {
-                StylingHelper.highlight(activity, body, highlightedTerm, StylingHelper.isDarkText(viewHolder.messageBody));
+            final RenderedBody rendered = renderedBodies.get(message.getUuid());
+            final CharSequence body;
+            if (rendered != null && rendered.key.equals(key)) {
+                body = rendered.text;
+            } else {
+                body = renderBody(message, key);
+                renderedBodies.put(message.getUuid(), new RenderedBody(key, body));
             }
-            MyLinkify.addLinks(body, true);
             viewHolder.messageBody.setAutoLinkMask(0);
-            viewHolder.messageBody.setText(EmojiWrapper.transform(body));
+            viewHolder.messageBody.setText(body);
             viewHolder.messageBody.setMovementMethod(ClickableMovementMethod.getInstance());
         } else {
             viewHolder.messageBody.setText("");
@@ -502,6 +463,180 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         }
     }
 
+    private RenderKey getRenderKey(final Message message, final boolean darkBackground, final int textColor, final List<String> highlightedTerm) {
+        final List<String> bodies = new ArrayList<>();
+        bodies.add(message.getBody());
+        Message current = message;
+        while (current.mergeable(current.next())) {
+            current = current.next();
+            if (current == null) {
+                break;
+            }
+            bodies.add(current.getBody());
+        }
+        final String nick = message.hasMeCommand() ? UIHelper.getMessageDisplayName(message) : null;
+        final String privateMarker;
+        if (message.isPrivateMessage()) {
+            if (message.getStatus() <= Message.STATUS_RECEIVED) {
+                privateMarker = activity.getString(R.string.private_message);
+            } else {
+                final Jid cp = message.getCounterpart();
+                privateMarker = activity.getString(R.string.private_message_to, Strings.nullToEmpty(cp == null ? null : cp.getResource()));
+            }
+        } else {
+            privateMarker = null;
+        }
+        final String ownNick;
+        if (message.getConversation().getMode() == Conversation.MODE_MULTI && message.getStatus() == Message.STATUS_RECEIVED && message.getConversation() instanceof Conversation) {
+            ownNick = ((Conversation) message.getConversation()).getMucOptions().getActualNick();
+        } else {
+            ownNick = null;
+        }
+        return new RenderKey(bodies, darkBackground, textColor, highlightedTerm, nick, privateMarker, ownNick);
+    }
+
+    private CharSequence renderBody(final Message message, final RenderKey key) {
+        final boolean darkBackground = key.darkBackground;
+        SpannableStringBuilder body = message.getMergedBody();
+        boolean hasMeCommand = key.nick != null;
+        if (hasMeCommand) {
+            body = body.replace(0, Message.ME_COMMAND.length(), key.nick + " ");
+        }
+        if (body.length() > Config.MAX_DISPLAY_MESSAGE_CHARS) {
+            body = new SpannableStringBuilder(body, 0, Config.MAX_DISPLAY_MESSAGE_CHARS);
+            body.append("\u2026");
+        }
+        Message.MergeSeparator[] mergeSeparators = body.getSpans(0, body.length(), Message.MergeSeparator.class);
+        for (Message.MergeSeparator mergeSeparator : mergeSeparators) {
+            int start = body.getSpanStart(mergeSeparator);
+            int end = body.getSpanEnd(mergeSeparator);
+            body.setSpan(new DividerSpan(true), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        boolean startsWithQuote = handleTextQuotes(body, darkBackground);
+        if (key.privateMarker == null) {
+            if (hasMeCommand) {
+                body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), 0, key.nick.length(),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        } else {
+            final String privateMarker = key.privateMarker;
+            body.insert(0, privateMarker);
+            int privateMarkerIndex = privateMarker.length();
+            if (startsWithQuote) {
+                body.insert(privateMarkerIndex, "\n\n");
+                body.setSpan(new DividerSpan(false), privateMarkerIndex, privateMarkerIndex + 2,
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            } else {
+                body.insert(privateMarkerIndex, " ");
+            }
+            body.setSpan(new ForegroundColorSpan(getMessageTextColor(darkBackground, false)), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            body.setSpan(new StyleSpan(Typeface.BOLD), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            if (hasMeCommand) {
+                body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), privateMarkerIndex + 1,
+                        privateMarkerIndex + 1 + key.nick.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        if (key.ownNick != null) {
+            Pattern pattern = NotificationService.generateNickHighlightPattern(key.ownNick);
+            Matcher matcher = pattern.matcher(body);
+            while (matcher.find()) {
+                body.setSpan(new StyleSpan(Typeface.BOLD), matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        final int[] emojis = Emoticons.findEmojis(body);
+        for (int i = 0; i < emojis.length; i += 2) {
+            body.setSpan(new RelativeSizeSpan(1.2f), emojis[i], emojis[i + 1], Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        StylingHelper.format(body, key.textColor);
+        if (key.highlightedTerm != null) {
+            StylingHelper.highlight(activity, body, key.highlightedTerm, StylingHelper.isDarkText(key.textColor));
+        }
+        MyLinkify.addLinks(body, true);
+        return EmojiWrapper.transform(body);
+    }
+
+    /**
+     * Renders the bodies of text messages in the background so that binding them while scrolling
+     * only has to look them up. Messages that have not been bound with the same kind of background
+     * yet are skipped because their text color is only known after binding. Rendering stops once
+     * half of the cache is filled so that older messages never evict the ones at the bottom, and
+     * the other half stays available for whatever is bound while scrolling up.
+     */
+    private void prerender(final List<Message> messages) {
+        final List<String> highlightedTerm = this.highlightedTerm;
+        final boolean darkTheme = activity.isDarkTheme();
+        final boolean useGreenBackground = mUseGreenBackground;
+        RENDER_EXECUTOR.execute(new Cancellable() {
+
+            private volatile boolean cancelled = false;
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+            }
+
+            @Override
+            public void run() {
+                final int budget = renderedBodies.maxSize() / 2;
+                int size = 0;
+                //render from the bottom up, which is where conversations are opened
+                for (final Message message : Lists.reverse(messages)) {
+                    if (cancelled || size >= budget) {
+                        return;
+                    }
+                    if (!isRenderedAsText(message)) {
+                        continue;
+                    }
+                    final boolean isInValidSession = message.isValidInSession() && (message.getEncryption() != Message.ENCRYPTION_AXOLOTL || message.isTrusted());
+                    final boolean darkBackground = getItemViewType(message) == RECEIVED && (!isInValidSession || useGreenBackground) || darkTheme;
+                    final int textColor = darkBackground ? bodyTextColorOnDark : bodyTextColor;
+                    if (textColor == 0) {
+                        continue;
+                    }
+                    final RenderKey key = getRenderKey(message, darkBackground, textColor, highlightedTerm);
+                    final RenderedBody rendered = renderedBodies.get(message.getUuid());
+                    if (rendered == null || !rendered.key.equals(key)) {
+                        final RenderedBody updated = new RenderedBody(key, renderBody(message, key));
+                        renderedBodies.put(message.getUuid(), updated);
+                        size += updated.size();
+                    } else {
+                        size += rendered.size();
+                    }
+                }
+            }
+        });
+    }
+
+    private static boolean isRenderedAsText(final Message message) {
+        final int type = message.getType();
+        if (type == Message.TYPE_STATUS || type == Message.TYPE_RTP_SESSION || message.getBody() == null) {
+            return false;
+        }
+        final int encryption = message.getEncryption();
+        if (encryption == Message.ENCRYPTION_PGP
+                || encryption == Message.ENCRYPTION_DECRYPTION_FAILED
+                || encryption == Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE
+                || encryption == Message.ENCRYPTION_AXOLOTL_FAILED) {
+            return false;
+        }
+        if (message.isDeleted() || message.getTransferable() != null || message.isFileOrImage() || MessageUtils.unInitiatedButKnownSize(message)) {
+            return false;
+        }
+        return !message.isGeoUri() && !(message.bodyIsOnlyEmojis() && type != Message.TYPE_PRIVATE) && !message.treatAsDownloadable();
+    }
+
+    @Override
+    public void notifyDataSetChanged() {
+        super.notifyDataSetChanged();
+        final int count = getCount();
+        final List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            messages.add(getItem(i));
+        }
+        prerender(messages);
+    }
+
     private void displayDownloadableMessage(ViewHolder viewHolder, final Message message, String text, final boolean darkBackground) {
         toggleWhisperInfo(viewHolder, message, darkBackground);
         viewHolder.image.setVisibility(View.GONE);
@@ -906,6 +1041,61 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         void onContactPictureLongClicked(View v, Message message);
     }
 
+    private static class RenderKey {
+
+        private final List<String> bodies;
+        private final boolean darkBackground;
+        private final int textColor;
+        private final List<String> highlightedTerm;
+        private final String nick;
+        private final String privateMarker;
+        private final String ownNick;
+
+        private RenderKey(final List<String> bodies, final boolean darkBackground, final int textColor, final List<String> highlightedTerm, final String nick, final String privateMarker, final String ownNick) {
+            this.bodies = bodies;
+            this.darkBackground = darkBackground;
+            this.textColor = textColor;
+            this.highlightedTerm = highlightedTerm;
+            this.nick = nick;
+            this.privateMarker = privateMarker;
+            this.ownNick = ownNick;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            RenderKey renderKey = (RenderKey) o;
+            return darkBackground == renderKey.darkBackground
+                    && textColor == renderKey.textColor
+                    && bodies.equals(renderKey.bodies)
+                    && Objects.equal(highlightedTerm, renderKey.highlightedTerm)
+                    && Objects.equal(nick, renderKey.nick)
+                    && Objects.equal(privateMarker, renderKey.privateMarker)
+                    && Objects.equal(ownNick, renderKey.ownNick);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(bodies, darkBackground, textColor, highlightedTerm, nick, privateMarker, ownNick);
+        }
+    }
+
+    private static class RenderedBody {
+
+        private final RenderKey key;
+        private final CharSequence text;
+
+        private RenderedBody(final RenderKey key, final CharSequence text) {
+            this.key = key;
+            this.text = text;
+        }
+
+        private int size() {
+            return text.length() + 1;
+        }
+    }
+
     private static class ViewHolder {
 
         public Button load_more_messages;
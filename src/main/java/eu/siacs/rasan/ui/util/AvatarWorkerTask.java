@@ -6,19 +6,24 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
+import android.util.Pair;
 import android.widget.ImageView;
 
 import androidx.annotation.DimenRes;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.util.concurrent.RejectedExecutionException;
 
 import eu.siacs.rasan.R;
 import eu.siacs.rasan.entities.Account;
 import eu.siacs.rasan.services.AvatarService;
 import eu.siacs.rasan.ui.XmppActivity;
+import eu.siacs.rasan.utils.LoadCoalescer;
 
 public class AvatarWorkerTask extends AsyncTask<AvatarService.Avatarable, Void, Bitmap> {
+
+    private static final LoadCoalescer<Pair<AvatarService.Avatarable, Integer>, Bitmap> AVATAR_LOADS = new LoadCoalescer<>();
+
     private final WeakReference<ImageView> imageViewReference;
     private AvatarService.Avatarable avatarable = null;
     private @DimenRes
@@ -33,10 +38,15 @@ public class AvatarWorkerTask extends AsyncTask<AvatarService.Avatarable, Void,
     protected Bitmap doInBackground(AvatarService.Avatarable... params) {
         this.avatarable = params[0];
         final XmppActivity activity = XmppActivity.find(imageViewReference);
-        if (activity == null) {
+        if (activity == null || isCancelled()) {
+            return null;
+        }
+        final int pixels = (int) activity.getResources().getDimension(size);
+        try {
+            return AVATAR_LOADS.load(new Pair<>(avatarable, pixels), () -> activity.avatarService().get(avatarable, pixels, false));
+        } catch (final IOException e) {
             return null;
         }
-        return activity.avatarService().get(avatarable, (int) activity.getResources().getDimension(size), isCancelled());
     }
 
     @Override
@@ -93,10 +103,7 @@ public class AvatarWorkerTask extends AsyncTask<AvatarService.Avatarable, Void,
                 final AvatarWorkerTask task = new AvatarWorkerTask(imageView, size);
                 final AsyncDrawable asyncDrawable = new AsyncDrawable(activity.getResources(), null, task);
                 imageView.setImageDrawable(asyncDrawable);
-                try {
-                    task.execute(avatarable);
-                } catch (final RejectedExecutionException ignored) {
-                }
+                BitmapLoader.execute(task, avatarable);
             }
         }
     }
@@ -0,0 +1,62 @@
+package eu.siacs.rasan.ui.util;
+
+import android.os.AsyncTask;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the tasks that load avatars, thumbnails and previews for list items.
+ * <p>
+ * AsyncTask's default executor runs one task at a time. This pool decodes several bitmaps in
+ * parallel and starts the most recently requested ones first, because while scrolling those
+ * belong to the items that are currently visible. Tasks of recycled views are cancelled by their
+ * owners and are dropped from the queue before they run.
+ */
+public final class BitmapLoader {
+
+    private static final int PARALLELISM = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int PURGE_THRESHOLD = 64;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            PARALLELISM,
+            PARALLELISM,
+            30,
+            TimeUnit.SECONDS,
+            new NewestFirstQueue(),
+            runnable -> {
+                final Thread thread = new Thread(runnable, "BitmapLoader");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+    );
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private BitmapLoader() {
+
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <P> void execute(final AsyncTask<P, ?, ?> task, final P param) {
+        if (EXECUTOR.getQueue().size() >= PURGE_THRESHOLD) {
+            EXECUTOR.purge();
+        }
+        try {
+            task.executeOnExecutor(EXECUTOR, param);
+        } catch (final RejectedExecutionException ignored) {
+        }
+    }
+
+    private static class NewestFirstQueue extends LinkedBlockingDeque<Runnable> {
+
+        @Override
+        public boolean offer(final Runnable runnable) {
+            return super.offerFirst(runnable);
+        }
+    }
+}
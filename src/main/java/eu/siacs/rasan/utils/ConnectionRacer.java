@@ -0,0 +1,200 @@
+package eu.siacs.rasan.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.IDN;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import eu.siacs.rasan.Config;
+import eu.siacs.rasan.persistance.FileBackend;
+
+/**
+ * Establishes a TCP connection to one of several resolver results by racing staggered connection
+ * attempts (Happy Eyeballs, RFC 8305).
+ * <p>
+ * Attempts are started in the order of the results with a fixed delay between them. An attempt
+ * that fails starts the next one right away. The first attempt to connect wins and all other
+ * attempts are aborted. The outcome of every attempt is recorded per endpoint and endpoints that
+ * failed recently are tried last in later races.
+ */
+public class ConnectionRacer {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+    private static final HashMap<Resolver.Result, EndpointStats> ENDPOINT_STATS = new HashMap<>();
+
+    /**
+     * @return the results with endpoints that failed on their most recent attempt moved to the
+     * end. The order is stable otherwise.
+     */
+    public static List<Resolver.Result> rank(final List<Resolver.Result> results) {
+        final List<Resolver.Result> ranked = new ArrayList<>(results);
+        synchronized (ENDPOINT_STATS) {
+            Collections.sort(ranked, (a, b) -> Integer.compare(getConsecutiveFailures(a), getConsecutiveFailures(b)));
+        }
+        return ranked;
+    }
+
+    private static int getConsecutiveFailures(final Resolver.Result result) {
+        final EndpointStats stats = ENDPOINT_STATS.get(result);
+        return stats == null ? 0 : stats.consecutiveFailures;
+    }
+
+    /**
+     * Races connection attempts to the given candidates.
+     * <p>
+     * The winner and all candidates that failed to connect are removed from the list. Candidates
+     * whose attempts were aborted or never started remain and can be raced again if the
+     * connection to the winner turns out to be unusable.
+     *
+     * @param candidates the results to connect to, in order of preference
+     * @param delay      milliseconds to wait before starting the next attempt
+     * @param timeout    connect timeout of a single attempt in milliseconds
+     * @throws IOException if none of the candidates could be connected to
+     */
+    public static Connection race(final List<Resolver.Result> candidates, final int delay, final int timeout) throws IOException, InterruptedException {
+        final ExecutorCompletionService<Connection> completionService = new ExecutorCompletionService<>(EXECUTOR);
+        final HashMap<Future<Connection>, Attempt> attempts = new HashMap<>();
+        final List<Resolver.Result> failed = new ArrayList<>();
+        Connection winner = null;
+        IOException lastException = null;
+        int started = 0;
+        int running = 0;
+        long nextStart = SystemClock.elapsedRealtime();
+        try {
+            while (true) {
+                final long now = SystemClock.elapsedRealtime();
+                if (started < candidates.size() && (running == 0 || now >= nextStart)) {
+                    final Attempt attempt = new Attempt(candidates.get(started++), timeout);
+                    attempts.put(completionService.submit(attempt), attempt);
+                    ++running;
+                    nextStart = now + delay;
+                }
+                if (running == 0) {
+                    throw lastException != null ? lastException : new UnknownHostException();
+                }
+                final Future<Connection> future;
+                if (started < candidates.size()) {
+                    future = completionService.poll(Math.max(0, nextStart - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+                } else {
+                    future = completionService.take();
+                }
+                if (future == null) {
+                    continue;
+                }
+                --running;
+                final Attempt attempt = attempts.get(future);
+                try {
+                    winner = future.get();
+                    record(attempt.result, true, winner.latency);
+                    return winner;
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    Log.d(Config.LOGTAG, "unable to connect to " + attempt.result + ": " + (cause == null ? null : cause.getMessage()));
+                    record(attempt.result, false, 0);
+                    failed.add(attempt.result);
+                    lastException = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    nextStart = SystemClock.elapsedRealtime();
+                }
+            }
+        } finally {
+            for (final Attempt attempt : attempts.values()) {
+                if (winner == null || attempt.socket != winner.socket) {
+                    attempt.abort();
+                }
+            }
+            candidates.removeAll(failed);
+            if (winner != null) {
+                candidates.remove(winner.result);
+            }
+        }
+    }
+
+    private static void record(final Resolver.Result result, final boolean success, final long latency) {
+        synchronized (ENDPOINT_STATS) {
+            EndpointStats stats = ENDPOINT_STATS.get(result);
+            if (stats == null) {
+                stats = new EndpointStats();
+                ENDPOINT_STATS.put(result, stats);
+            }
+            if (success) {
+                ++stats.successes;
+                stats.consecutiveFailures = 0;
+                stats.averageLatency = stats.successes == 1 ? latency : (stats.averageLatency * 3 + latency) / 4;
+                Log.d(Config.LOGTAG, "connected to " + result + " in " + latency + "ms (" + stats + ")");
+            } else {
+                ++stats.failures;
+                ++stats.consecutiveFailures;
+            }
+        }
+    }
+
+    public static class Connection {
+
+        public final Resolver.Result result;
+        public final Socket socket;
+        private final long latency;
+
+        private Connection(final Resolver.Result result, final Socket socket, final long latency) {
+            this.result = result;
+            this.socket = socket;
+            this.latency = latency;
+        }
+    }
+
+    private static class Attempt implements Callable<Connection> {
+
+        private final Resolver.Result result;
+        private final int timeout;
+        private final Socket socket = new Socket();
+
+        private Attempt(final Resolver.Result result, final int timeout) {
+            this.result = result;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public Connection call() throws IOException {
+            final long start = SystemClock.elapsedRealtime();
+            final InetSocketAddress address;
+            if (result.getIp() != null) {
+                address = new InetSocketAddress(result.getIp(), result.getPort());
+            } else {
+                address = new InetSocketAddress(IDN.toASCII(result.getHostname().toString()), result.getPort());
+            }
+            socket.connect(address, timeout);
+            return new Connection(result, socket, SystemClock.elapsedRealtime() - start);
+        }
+
+        private void abort() {
+            FileBackend.close(socket);
+        }
+    }
+
+    private static class EndpointStats {
+
+        private int successes = 0;
+        private int failures = 0;
+        private int consecutiveFailures = 0;
+        private long averageLatency = 0;
+
+        @Override
+        public String toString() {
+            return "successes=" + successes + ", failures=" + failures + ", latency=" + averageLatency + "ms";
+        }
+    }
+}
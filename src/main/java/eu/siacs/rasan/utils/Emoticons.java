@@ -29,15 +29,7 @@
 
 package eu.siacs.rasan.utils;
 
-import android.util.LruCache;
-
-import androidx.annotation.NonNull;
-
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
-import java.util.regex.Pattern;
 
 public class Emoticons {
 
@@ -84,127 +76,102 @@ public class Emoticons {
     private static final int BLACK_FLAG = 0x1F3F4;
     private static final UnicodeRange FITZPATRICK = new UnicodeRange(0x1F3FB, 0x1F3FF);
 
-    private static final LruCache<CharSequence, Pattern> CACHE = new LruCache<>(256);
-
-    private static List<Symbol> parse(String input) {
-        List<Symbol> symbols = new ArrayList<>();
-        Builder builder = new Builder();
+    /**
+     * Splits the input into symbols in a single pass over its code points. Every symbol is reported
+     * to the consumer with its char offsets. Code points that do not start a symbol are reported
+     * as empty non-emoji symbols.
+     */
+    private static void scan(final CharSequence input, final SymbolConsumer consumer) {
+        final Builder builder = new Builder();
+        int start = 0;
         boolean needsFinalBuild = false;
         for (int cp, i = 0; i < input.length(); i += Character.charCount(cp)) {
-            cp = input.codePointAt(i);
+            cp = Character.codePointAt(input, i);
             if (builder.offer(cp)) {
                 needsFinalBuild = true;
             } else {
-                symbols.add(builder.build());
-                builder = new Builder();
+                if (!consumer.accept(start, i, builder.isEmoji())) {
+                    return;
+                }
+                builder.reset();
+                start = i;
                 if (builder.offer(cp)) {
                     needsFinalBuild = true;
+                } else {
+                    start = i + Character.charCount(cp);
                 }
             }
         }
         if (needsFinalBuild) {
-            symbols.add(builder.build());
-        }
-        return symbols;
-    }
-
-    public static Pattern getEmojiPattern(final CharSequence input) {
-        Pattern pattern = CACHE.get(input);
-        if (pattern == null) {
-            pattern = generatePattern(input);
-            CACHE.put(input, pattern);
+            consumer.accept(start, input.length(), builder.isEmoji());
         }
-        return pattern;
     }
 
-    private static Pattern generatePattern(CharSequence input) {
-        final HashSet<String> emojis = new HashSet<>();
-        int i = 0;
-        for (final Symbol symbol : parse(input.toString())) {
-            if (symbol instanceof Emoji) {
-                emojis.add(symbol.toString());
-                if (++i >= MAX_EMOIJS) {
-                    return Pattern.compile("");
+    /**
+     * Finds the emojis in the input without allocating intermediate strings or patterns.
+     *
+     * @return the start and end offsets of every emoji, one pair after another. The result is empty
+     * if the input contains too many emojis to be highlighted.
+     */
+    public static int[] findEmojis(final CharSequence input) {
+        final int[] ranges = new int[MAX_EMOIJS * 2];
+        final int[] count = {0};
+        scan(input, (start, end, emoji) -> {
+            if (emoji) {
+                if (count[0] == MAX_EMOIJS - 1) {
+                    count[0] = -1;
+                    return false;
                 }
+                ranges[count[0] * 2] = start;
+                ranges[count[0] * 2 + 1] = end;
+                ++count[0];
             }
-        }
-        final StringBuilder pattern = new StringBuilder();
-        for (String emoji : emojis) {
-            if (pattern.length() != 0) {
-                pattern.append('|');
-            }
-            pattern.append(Pattern.quote(emoji));
-        }
-        return Pattern.compile(pattern.toString());
+            return true;
+        });
+        return count[0] <= 0 ? new int[0] : Arrays.copyOf(ranges, count[0] * 2);
     }
 
     public static boolean isEmoji(String input) {
-        List<Symbol> symbols = parse(input);
-        return symbols.size() == 1 && symbols.get(0).isEmoji();
-    }
-
-    public static boolean isOnlyEmoji(String input) {
-        List<Symbol> symbols = parse(input);
-        for (Symbol symbol : symbols) {
-            if (!symbol.isEmoji()) {
-                return false;
+        final int[] symbols = {0, 0};
+        scan(input, (start, end, emoji) -> {
+            ++symbols[0];
+            if (emoji) {
+                ++symbols[1];
             }
-        }
-        return symbols.size() > 0;
-    }
-
-    private static abstract class Symbol {
-
-        private final String value;
-
-        Symbol(List<Integer> codepoints) {
-            final StringBuilder builder = new StringBuilder();
-            for (final Integer codepoint : codepoints) {
-                builder.appendCodePoint(codepoint);
-            }
-            this.value = builder.toString();
-        }
-
-        abstract boolean isEmoji();
-
-        @NonNull
-        @Override
-        public String toString() {
-            return value;
-        }
+            return symbols[0] <= 1;
+        });
+        return symbols[0] == 1 && symbols[1] == 1;
     }
 
-    public static class Emoji extends Symbol {
-
-        Emoji(List<Integer> codepoints) {
-            super(codepoints);
-        }
-
-        @Override
-        boolean isEmoji() {
-            return true;
-        }
+    public static boolean isOnlyEmoji(String input) {
+        final boolean[] result = {false, true};
+        scan(input, (start, end, emoji) -> {
+            result[0] = true;
+            result[1] = emoji;
+            return emoji;
+        });
+        return result[0] && result[1];
     }
 
-    public static class Other extends Symbol {
-
-        public Other(List<Integer> codepoints) {
-            super(codepoints);
-        }
-
-        @Override
-        boolean isEmoji() {
-            return false;
-        }
+    private interface SymbolConsumer {
+        /**
+         * @return false to stop scanning
+         */
+        boolean accept(int start, int end, boolean emoji);
     }
 
     private static class Builder {
-        private final List<Integer> codepoints = new ArrayList<>();
-
+        private int size = 0;
+        private int first;
+        private int last;
 
         public boolean offer(int codepoint) {
+            if (codepoint < 0x80 && !KEYCAP_COMBINEABLE.contains(codepoint)) {
+                //plain ASCII neither starts nor continues a symbol
+                return false;
+            }
             boolean add = false;
-            if (this.codepoints.size() == 0) {
+            if (size == 0) {
                 if (SYMBOLIZE.contains(codepoint)) {
                     add = true;
                 } else if (REGIONAL_INDICATORS.contains(codepoint)) {
@@ -213,15 +180,15 @@ public class Emoticons {
                     add = true;
                 }
             } else {
-                int previous = codepoints.get(codepoints.size() - 1);
-                if (codepoints.get(0) == BLACK_FLAG) {
+                int previous = last;
+                if (first == BLACK_FLAG) {
                     add = TAGS.contains(codepoint);
                 } else if (COMBINING_ENCLOSING_KEYCAP == codepoint) {
                     add = KEYCAP_COMBINEABLE.contains(previous) || previous == VARIATION_16;
                 } else if (SYMBOLIZE.contains(previous)) {
                     add = codepoint == VARIATION_16;
                 } else if (REGIONAL_INDICATORS.contains(previous) && REGIONAL_INDICATORS.contains(codepoint)) {
-                    add = codepoints.size() == 1;
+                    add = size == 1;
                 } else if (previous == VARIATION_16) {
                     add = isMerger(codepoint) || codepoint == VARIATION_16;
                 } else if (FITZPATRICK.contains(previous)) {
@@ -235,7 +202,11 @@ public class Emoticons {
                 }
             }
             if (add) {
-                codepoints.add(codepoint);
+                if (size == 0) {
+                    first = codepoint;
+                }
+                last = codepoint;
+                ++size;
                 return true;
             } else {
                 return false;
@@ -246,13 +217,17 @@ public class Emoticons {
             return codepoint == ZWJ || FITZPATRICK.contains(codepoint);
         }
 
-        public Symbol build() {
-            if (codepoints.size() > 0 && SYMBOLIZE.contains(codepoints.get(codepoints.size() - 1))) {
-                return new Other(codepoints);
-            } else if (codepoints.size() > 1 && KEYCAP_COMBINEABLE.contains(codepoints.get(0)) && codepoints.get(codepoints.size() - 1) != COMBINING_ENCLOSING_KEYCAP) {
-                return new Other(codepoints);
+        public boolean isEmoji() {
+            if (size > 0 && SYMBOLIZE.contains(last)) {
+                return false;
+            } else if (size > 1 && KEYCAP_COMBINEABLE.contains(first) && last != COMBINING_ENCLOSING_KEYCAP) {
+                return false;
             }
-            return codepoints.size() == 0 ? new Other(codepoints) : new Emoji(codepoints);
+            return size != 0;
+        }
+
+        public void reset() {
+            size = 0;
         }
     }
 
@@ -280,15 +255,20 @@ public class Emoticons {
 
     public static class UnicodeList implements UnicodeSet {
 
-        private final List<Integer> list;
+        private final int[] list;
 
-        UnicodeList(final Integer... codes) {
-            this.list = Arrays.asList(codes);
+        UnicodeList(final int... codes) {
+            this.list = codes;
         }
 
         @Override
         public boolean contains(int codepoint) {
-            return this.list.contains(codepoint);
+            for (final int code : list) {
+                if (code == codepoint) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
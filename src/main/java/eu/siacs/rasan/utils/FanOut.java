@@ -0,0 +1,60 @@
+package eu.siacs.rasan.utils;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Applies a function to a collection of independent inputs on a bounded pool of workers.
+ * <p>
+ * The function is prepared once and then applied to any number of batches. Results are returned in
+ * the iteration order of the inputs, so callers observe the same order as with a sequential loop.
+ * Batches below the threshold are processed on the calling thread because handing them off costs
+ * more than it saves. The function has to be safe to call concurrently for different inputs; a
+ * batch must not contain the same input twice if the function is not safe to call concurrently
+ * for the same input.
+ */
+public class FanOut<I, O> {
+
+    private final ListeningExecutorService executor;
+    private final Function<I, O> function;
+    private final int threshold;
+
+    public FanOut(final String name, final int parallelism, final int threshold, final Function<I, O> function) {
+        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(parallelism, runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }));
+        this.function = function;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Blocks until the function has been applied to all inputs.
+     *
+     * @return the results in the iteration order of the inputs
+     */
+    public List<O> apply(final Collection<I> inputs) {
+        final List<O> results = new ArrayList<>(inputs.size());
+        if (inputs.size() < threshold) {
+            for (final I input : inputs) {
+                results.add(function.apply(input));
+            }
+            return results;
+        }
+        final List<ListenableFuture<O>> futures = new ArrayList<>(inputs.size());
+        for (final I input : inputs) {
+            futures.add(executor.submit(() -> function.apply(input)));
+        }
+        results.addAll(Futures.getUnchecked(Futures.allAsList(futures)));
+        return results;
+    }
+}
@@ -29,6 +29,9 @@
 
 package eu.siacs.rasan.utils;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -39,6 +42,10 @@ public class FtsUtils {
 
 	private static final List<String> KEYWORDS = Arrays.asList("OR", "AND");
 
+	private static final double BM25_K1 = 1.2;
+	private static final double BM25_B = 0.75;
+	private static final double BM25_MIN_IDF = 1e-6;
+
 	public static List<String> parse(String input) {
 		List<String> term = new ArrayList<>();
 		for (String part : input.replace('"',' ').split("\\s+")) {
@@ -119,4 +126,57 @@ public class FtsUtils {
 		}
 		return builder.toString();
 	}
+
+	/**
+	 * Returns true if every message matching the refined term also matches the original term.
+	 * This is the case when the refined term only adds words or extends the last word of the
+	 * original term and neither of them uses keywords, negations or explicit wildcards.
+	 */
+	public static boolean isRefinement(List<String> original, List<String> refined) {
+		if (original.isEmpty() || refined.size() < original.size()) {
+			return false;
+		}
+		for (String term : refined) {
+			if (isKeyword(term) || term.contains("*") || term.startsWith("-")) {
+				return false;
+			}
+		}
+		final int last = original.size() - 1;
+		for (int i = 0; i < last; ++i) {
+			if (!original.get(i).equalsIgnoreCase(refined.get(i))) {
+				return false;
+			}
+		}
+		final String word = original.get(last);
+		return refined.get(last).regionMatches(true, 0, word, 0, word.length());
+	}
+
+	/**
+	 * Scores a row with Okapi BM25 based on the output of the FTS4 matchinfo function called with
+	 * the format string 'pcnalx'.
+	 *
+	 * @param matchinfo the matchinfo blob of the row
+	 * @param column    the column the score is calculated for
+	 */
+	public static double bm25(byte[] matchinfo, int column) {
+		final IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+		final int phrases = info.get(0);
+		final int columns = info.get(1);
+		final double rows = info.get(2) & 0xffffffffL;
+		final double averageLength = Math.max(1, info.get(3 + column) & 0xffffffffL);
+		final double length = info.get(3 + columns + column) & 0xffffffffL;
+		final int hits = 3 + 2 * columns;
+		double score = 0;
+		for (int phrase = 0; phrase < phrases; ++phrase) {
+			final int offset = hits + 3 * (phrase * columns + column);
+			final double frequency = info.get(offset) & 0xffffffffL;
+			if (frequency == 0) {
+				continue;
+			}
+			final double documents = info.get(offset + 2) & 0xffffffffL;
+			final double idf = Math.max(BM25_MIN_IDF, Math.log((rows - documents + 0.5) / (documents + 0.5)));
+			score += idf * frequency * (BM25_K1 + 1) / (frequency + BM25_K1 * (1 - BM25_B + BM25_B * length / averageLength));
+		}
+		return score;
+	}
 }
@@ -30,14 +30,13 @@
 package eu.siacs.rasan.utils;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 public class ImStyleParser {
 
-    private final static List<Character> KEYWORDS = Arrays.asList('*', '_', '~', '`');
-    private final static List<Character> NO_SUB_PARSING_KEYWORDS = Arrays.asList('`');
-    private final static List<Character> BLOCK_KEYWORDS = Arrays.asList('`');
+    private final static String KEYWORDS = "*_~`";
+    private final static String NO_SUB_PARSING_KEYWORDS = "`";
+    private final static String BLOCK_KEYWORDS = "`";
     private final static boolean ALLOW_EMPTY = false;
     private final static boolean PARSE_HIGHER_ORDER_END = true;
 
@@ -49,8 +48,8 @@ public class ImStyleParser {
         List<Style> styles = new ArrayList<>();
         for (int i = start; i <= end; ++i) {
             char c = text.charAt(i);
-            if (KEYWORDS.contains(c) && precededByWhiteSpace(text, i, start) && !followedByWhitespace(text, i, end)) {
-                if (BLOCK_KEYWORDS.contains(c) && isCharRepeatedTwoTimes(text, c, i + 1, end)) {
+            if (KEYWORDS.indexOf(c) >= 0 && precededByWhiteSpace(text, i, start) && !followedByWhitespace(text, i, end)) {
+                if (BLOCK_KEYWORDS.indexOf(c) >= 0 && isCharRepeatedTwoTimes(text, c, i + 1, end)) {
                     int to = seekEndBlock(text, c, i + 3, end);
                     if (to != -1 && (to != i + 5 || ALLOW_EMPTY)) {
                         String keyword = String.valueOf(c) + c + c;
@@ -62,7 +61,7 @@ public class ImStyleParser {
                 int to = seekEnd(text, c, i + 1, end);
                 if (to != -1 && (to != i + 1 || ALLOW_EMPTY)) {
                     styles.add(new Style(c, i, to));
-                    if (!NO_SUB_PARSING_KEYWORDS.contains(c)) {
+                    if (NO_SUB_PARSING_KEYWORDS.indexOf(c) < 0) {
                         styles.addAll(parse(text, i + 1, to - 1));
                     }
                     i = to;
@@ -0,0 +1,125 @@
+package eu.siacs.rasan.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+import eu.siacs.rasan.Config;
+
+/**
+ * Runs tasks on a shared executor while guaranteeing that tasks submitted with the same key are
+ * executed one after another in submission order. Tasks with different keys may run in parallel.
+ */
+public class KeyedSerialExecutor {
+
+    private static final long SLOW_TASK_THRESHOLD = 500;
+
+    private final HashMap<Object, ArrayDeque<Runner>> queues = new HashMap<>();
+    private final Executor executor;
+    private final String name;
+    private int pending = 0;
+    private int maxPending = 0;
+    private long executed = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+
+    public KeyedSerialExecutor(final String name, final Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    public synchronized void execute(final Object key, final Runnable runnable) {
+        final Runner runner = new Runner(key, runnable);
+        ArrayDeque<Runner> queue = queues.get(key);
+        ++pending;
+        maxPending = Math.max(maxPending, pending);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queue.add(runner);
+            queues.put(key, queue);
+            executor.execute(runner);
+        } else {
+            queue.add(runner);
+        }
+    }
+
+    /**
+     * Blocks until all tasks that have been submitted with the given key have finished.
+     */
+    public synchronized void awaitIdle(final Object key) throws InterruptedException {
+        while (queues.containsKey(key)) {
+            wait();
+        }
+    }
+
+    /**
+     * Blocks until all submitted tasks have finished.
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (pending > 0) {
+            wait();
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return pending;
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return maxPending;
+    }
+
+    public synchronized long getAverageLatency() {
+        return executed == 0 ? 0 : totalLatency / executed;
+    }
+
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    private synchronized void complete(final Runner runner, final long latency) {
+        final ArrayDeque<Runner> queue = queues.get(runner.key);
+        queue.poll();
+        --pending;
+        ++executed;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+        final Runner next = queue.peek();
+        if (next == null) {
+            queues.remove(runner.key);
+        } else {
+            executor.execute(next);
+        }
+        notifyAll();
+    }
+
+    private class Runner implements Runnable {
+
+        private final Object key;
+        private final Runnable runnable;
+
+        private Runner(final Object key, final Runnable runnable) {
+            this.key = key;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                runnable.run();
+            } catch (final RuntimeException e) {
+                Log.e(Config.LOGTAG, "uncaught exception in task for " + key + " on executor '" + name + "'", e);
+            } finally {
+                final long latency = SystemClock.elapsedRealtime() - start;
+                if (latency > SLOW_TASK_THRESHOLD) {
+                    Log.d(Config.LOGTAG, "task for " + key + " on executor '" + name + "' took " + latency + "ms");
+                }
+                complete(this, latency);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package eu.siacs.rasan.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+/**
+ * Collapses concurrent loads of the same key into one.
+ * <p>
+ * The first thread to request a key runs the loader while threads requesting the same key in the
+ * meantime wait for and share its result. Only loads that are actually running are shared, so
+ * waiting can never block a load that has not started yet. Results are not retained; callers are
+ * expected to cache them.
+ */
+public class LoadCoalescer<K, V> {
+
+    private final HashMap<K, Load<V>> loads = new HashMap<>();
+
+    public V load(final K key, final Loader<V> loader) throws IOException {
+        final Load<V> load = new Load<>();
+        final Load<V> running;
+        synchronized (loads) {
+            running = loads.get(key);
+            if (running == null) {
+                loads.put(key, load);
+            }
+        }
+        if (running != null) {
+            return running.await();
+        }
+        V value = null;
+        Throwable failure = null;
+        try {
+            value = loader.load();
+            return value;
+        } catch (final IOException | RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            synchronized (loads) {
+                loads.remove(key);
+            }
+            load.complete(value, failure);
+        }
+    }
+
+    public interface Loader<V> {
+        V load() throws IOException;
+    }
+
+    private static class Load<V> {
+
+        private boolean done = false;
+        private V value;
+        private Throwable failure;
+
+        private synchronized void complete(final V value, final Throwable failure) {
+            this.value = value;
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        private synchronized V await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure != null) {
+                throw new IOException(failure);
+            }
+            return value;
+        }
+    }
+}
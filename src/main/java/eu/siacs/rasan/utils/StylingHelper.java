@@ -176,7 +176,10 @@ public class StylingHelper {
 	}
 
 	public static boolean isDarkText(TextView textView) {
-		int argb = textView.getCurrentTextColor();
+		return isDarkText(textView.getCurrentTextColor());
+	}
+
+	public static boolean isDarkText(@ColorInt int argb) {
 		return Color.red(argb) + Color.green(argb) + Color.blue(argb) == 0;
 	}
 
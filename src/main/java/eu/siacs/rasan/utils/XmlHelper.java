@@ -13,6 +13,50 @@ public class XmlHelper {
 		return content;
 	}
 
+	/**
+	 * Appends content to the builder with the same escaping as {@link #encodeEntities(String)}
+	 * but without creating intermediate strings.
+	 */
+	public static void appendEncoded(final StringBuilder builder, final String content) {
+		final int length = content.length();
+		int start = 0;
+		for (int i = 0; i < length; ++i) {
+			final char c = content.charAt(i);
+			final String replacement;
+			switch (c) {
+				case '&':
+					replacement = "&amp;";
+					break;
+				case '<':
+					replacement = "&lt;";
+					break;
+				case '>':
+					replacement = "&gt;";
+					break;
+				case '"':
+					replacement = "&quot;";
+					break;
+				case '\'':
+					replacement = "&apos;";
+					break;
+				case '\n':
+				case '\t':
+				case '\r':
+					continue;
+				default:
+					if (c < 0x20 || c == 0x7f) {
+						replacement = "";
+						break;
+					}
+					continue;
+			}
+			builder.append(content, start, i);
+			builder.append(replacement);
+			start = i + 1;
+		}
+		builder.append(content, start, length);
+	}
+
 	public static String printElementNames(final Element element) {
 		final StringBuilder builder = new StringBuilder();
 		builder.append('[');
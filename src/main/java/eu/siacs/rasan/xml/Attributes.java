@@ -0,0 +1,200 @@
+package eu.siacs.rasan.xml;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Attribute storage for {@link Element} and {@link Tag}.
+ * <p>
+ * Most stanza elements carry between zero and four attributes. Instead of a hash table with one
+ * entry object per attribute, names and values are kept interleaved in a single array that is
+ * searched linearly. The map is not synchronized. Iteration follows insertion order.
+ */
+public class Attributes extends AbstractMap<String, String> {
+
+	private static final String[] EMPTY = new String[0];
+	private static final int INITIAL_CAPACITY = 4;
+
+	private String[] entries = EMPTY;
+	private int size = 0;
+	private int modCount = 0;
+	private Set<Entry<String, String>> entrySet;
+
+	public Attributes() {
+	}
+
+	public Attributes(final Map<String, String> attributes) {
+		if (attributes instanceof Attributes) {
+			final Attributes other = (Attributes) attributes;
+			this.entries = other.size == 0 ? EMPTY : Arrays.copyOf(other.entries, other.size * 2);
+			this.size = other.size;
+		} else {
+			for (final Entry<String, String> entry : attributes.entrySet()) {
+				put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private int indexOf(final Object name) {
+		if (name == null) {
+			return -1;
+		}
+		final String[] entries = this.entries;
+		final int length = size * 2;
+		for (int i = 0; i < length; i += 2) {
+			final String key = entries[i];
+			if (key == name || key.equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public boolean containsKey(final Object name) {
+		return indexOf(name) >= 0;
+	}
+
+	@Override
+	public String get(final Object name) {
+		final int index = indexOf(name);
+		return index >= 0 ? entries[index + 1] : null;
+	}
+
+	@Override
+	public String put(final String name, final String value) {
+		if (name == null || value == null) {
+			throw new NullPointerException();
+		}
+		final int index = indexOf(name);
+		if (index >= 0) {
+			final String previous = entries[index + 1];
+			entries[index + 1] = value;
+			return previous;
+		}
+		final int length = size * 2;
+		if (length == entries.length) {
+			entries = Arrays.copyOf(entries, Math.max(INITIAL_CAPACITY * 2, length * 2));
+		}
+		entries[length] = name;
+		entries[length + 1] = value;
+		++size;
+		++modCount;
+		return null;
+	}
+
+	@Override
+	public String remove(final Object name) {
+		final int index = indexOf(name);
+		if (index < 0) {
+			return null;
+		}
+		final String previous = entries[index + 1];
+		removeAt(index);
+		return previous;
+	}
+
+	private void removeAt(final int index) {
+		final int length = size * 2;
+		System.arraycopy(entries, index + 2, entries, index, length - index - 2);
+		entries[length - 2] = null;
+		entries[length - 1] = null;
+		--size;
+		++modCount;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(entries, 0, size * 2, null);
+		size = 0;
+		++modCount;
+	}
+
+	String nameAt(final int index) {
+		return entries[index * 2];
+	}
+
+	String valueAt(final int index) {
+		return entries[index * 2 + 1];
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new EntrySet();
+		}
+		return entrySet;
+	}
+
+	private class EntrySet extends AbstractSet<Entry<String, String>> {
+
+		@Override
+		public Iterator<Entry<String, String>> iterator() {
+			return new EntryIterator();
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public void clear() {
+			Attributes.this.clear();
+		}
+	}
+
+	private class EntryIterator implements Iterator<Entry<String, String>> {
+
+		private int next = 0;
+		private int last = -1;
+		private int expectedModCount = modCount;
+
+		@Override
+		public boolean hasNext() {
+			return next < size;
+		}
+
+		@Override
+		public Entry<String, String> next() {
+			if (expectedModCount != modCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (next >= size) {
+				throw new NoSuchElementException();
+			}
+			last = next++;
+			return new SimpleImmutableEntry<>(nameAt(last), valueAt(last));
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			if (expectedModCount != modCount) {
+				throw new ConcurrentModificationException();
+			}
+			removeAt(last * 2);
+			next = last;
+			last = -1;
+			expectedModCount = modCount;
+		}
+	}
+}
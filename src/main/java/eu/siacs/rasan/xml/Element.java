@@ -3,7 +3,6 @@ package eu.siacs.rasan.xml;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.List;
 
 import eu.siacs.rasan.utils.XmlHelper;
@@ -13,7 +12,7 @@ import eu.siacs.rasan.xmpp.stanzas.MessagePacket;
 
 public class Element {
 	private final String name;
-	private Hashtable<String, String> attributes = new Hashtable<>();
+	private Attributes attributes = new Attributes();
 	private String content;
 	protected List<Element> children = new ArrayList<>();
 
@@ -138,17 +137,13 @@ public class Element {
 		return this;
 	}
 
-	public Element setAttributes(Hashtable<String, String> attributes) {
+	public Element setAttributes(Attributes attributes) {
 		this.attributes = attributes;
 		return this;
 	}
 
 	public String getAttribute(String name) {
-		if (this.attributes.containsKey(name)) {
-			return this.attributes.get(name);
-		} else {
-			return null;
-		}
+		return this.attributes.get(name);
 	}
 
 	public Jid getAttributeAsJid(String name) {
@@ -163,32 +158,36 @@ public class Element {
 		return null;
 	}
 
-	public Hashtable<String, String> getAttributes() {
+	public Attributes getAttributes() {
 		return this.attributes;
 	}
 
 	@NotNull
 	public String toString() {
 		final StringBuilder elementOutput = new StringBuilder();
-		if ((content == null) && (children.size() == 0)) {
-			Tag emptyTag = Tag.empty(name);
-			emptyTag.setAtttributes(this.attributes);
-			elementOutput.append(emptyTag.toString());
+		appendTo(elementOutput);
+		return elementOutput.toString();
+	}
+
+	/**
+	 * Serializes this element and its children into the given builder in a single pass.
+	 */
+	public void appendTo(final StringBuilder elementOutput) {
+		elementOutput.append('<').append(name);
+		Tag.appendAttributes(elementOutput, this.attributes);
+		if (content == null && children.size() == 0) {
+			elementOutput.append("/>");
 		} else {
-			Tag startTag = Tag.start(name);
-			startTag.setAtttributes(this.attributes);
-			elementOutput.append(startTag);
+			elementOutput.append('>');
 			if (content != null) {
-				elementOutput.append(XmlHelper.encodeEntities(content));
+				XmlHelper.appendEncoded(elementOutput, content);
 			} else {
 				for (Element child : children) {
-					elementOutput.append(child.toString());
+					child.appendTo(elementOutput);
 				}
 			}
-			Tag endTag = Tag.end(name);
-			elementOutput.append(endTag);
+			elementOutput.append("</").append(name).append('>');
 		}
-		return elementOutput.toString();
 	}
 
 	public final String getName() {
@@ -1,10 +1,5 @@
 package eu.siacs.rasan.xml;
 
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.Set;
-
 import eu.siacs.rasan.utils.XmlHelper;
 
 public class Tag {
@@ -15,7 +10,7 @@ public class Tag {
 
 	protected int type;
 	protected String name;
-	protected Hashtable<String, String> attributes = new Hashtable<String, String>();
+	protected Attributes attributes = new Attributes();
 
 	protected Tag(int type, String name) {
 		this.type = type;
@@ -51,7 +46,7 @@ public class Tag {
 		return this;
 	}
 
-	public Tag setAtttributes(Hashtable<String, String> attributes) {
+	public Tag setAtttributes(Attributes attributes) {
 		this.attributes = attributes;
 		return this;
 	}
@@ -80,16 +75,7 @@ public class Tag {
 		}
 		tagOutput.append(name);
 		if (type != END) {
-			Set<Entry<String, String>> attributeSet = attributes.entrySet();
-			Iterator<Entry<String, String>> it = attributeSet.iterator();
-			while (it.hasNext()) {
-				Entry<String, String> entry = it.next();
-				tagOutput.append(' ');
-				tagOutput.append(entry.getKey());
-				tagOutput.append("=\"");
-				tagOutput.append(XmlHelper.encodeEntities(entry.getValue()));
-				tagOutput.append('"');
-			}
+			appendAttributes(tagOutput, attributes);
 		}
 		if (type == EMPTY) {
 			tagOutput.append('/');
@@ -98,7 +84,17 @@ public class Tag {
 		return tagOutput.toString();
 	}
 
-	public Hashtable<String, String> getAttributes() {
+	static void appendAttributes(final StringBuilder output, final Attributes attributes) {
+		for (int i = 0; i < attributes.size(); ++i) {
+			output.append(' ');
+			output.append(attributes.nameAt(i));
+			output.append("=\"");
+			XmlHelper.appendEncoded(output, attributes.valueAt(i));
+			output.append('"');
+		}
+	}
+
+	public Attributes getAttributes() {
 		return this.attributes;
 	}
 }
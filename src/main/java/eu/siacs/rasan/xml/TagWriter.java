@@ -2,12 +2,17 @@ package eu.siacs.rasan.xml;
 
 import android.util.Log;
 
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eu.siacs.rasan.Config;
 import eu.siacs.rasan.xmpp.stanzas.AbstractStanza;
@@ -18,22 +23,37 @@ public class TagWriter {
 	private boolean finished = false;
 	private final LinkedBlockingQueue<AbstractStanza> writeQueue = new LinkedBlockingQueue<AbstractStanza>();
 	private CountDownLatch stanzaWriterCountDownLatch = null;
+	private CountingOutputStream countingOutputStream;
+	private final AtomicLong flushCount = new AtomicLong(0);
+	private final AtomicLong stanzaCount = new AtomicLong(0);
+	private long bytesFlushed = 0;
+
+	private final SerializationBuffer buffer = new SerializationBuffer();
 
 	private final Thread asyncStanzaWriter = new Thread() {
 
 		@Override
 		public void run() {
+			final SerializationBuffer asyncBuffer = new SerializationBuffer();
 			stanzaWriterCountDownLatch = new CountDownLatch(1);
 			while (!isInterrupted()) {
 				if (finished && writeQueue.size() == 0) {
 					break;
 				}
 				try {
+					//stanzas that are already queued share one flush, which happens as soon as the queue is empty
 					AbstractStanza output = writeQueue.take();
-					outputStream.write(output.toString());
-					if (writeQueue.size() == 0) {
-						outputStream.flush();
+					int stanzas = 0;
+					int length = 0;
+					while (output != null) {
+						length += asyncBuffer.write(output, outputStream);
+						++stanzas;
+						if (length >= Config.STANZA_WRITE_BATCH_SIZE) {
+							break;
+						}
+						output = writeQueue.poll();
 					}
+					flush(stanzas);
 				} catch (Exception e) {
 					break;
 				}
@@ -50,7 +70,11 @@ public class TagWriter {
 		if (out == null) {
 			throw new IOException();
 		}
-		this.outputStream = new OutputStreamWriter(out);
+		if (this.countingOutputStream != null) {
+			this.bytesFlushed += this.countingOutputStream.getCount();
+		}
+		this.countingOutputStream = new CountingOutputStream(out);
+		this.outputStream = new OutputStreamWriter(new BufferedOutputStream(countingOutputStream, Config.STANZA_WRITE_BATCH_SIZE));
 	}
 
 	public TagWriter beginDocument() throws IOException {
@@ -58,7 +82,7 @@ public class TagWriter {
 			throw new IOException("output stream was null");
 		}
 		outputStream.write("<?xml version='1.0'?>");
-		outputStream.flush();
+		flush(0);
 		return this;
 	}
 
@@ -67,7 +91,7 @@ public class TagWriter {
 			throw new IOException("output stream was null");
 		}
 		outputStream.write(tag.toString());
-		outputStream.flush();
+		flush(0);
 		return this;
 	}
 
@@ -75,11 +99,33 @@ public class TagWriter {
 		if (outputStream == null) {
 			throw new IOException("output stream was null");
 		}
-		outputStream.write(element.toString());
-		outputStream.flush();
+		buffer.write(element, outputStream);
+		flush(1);
 		return this;
 	}
 
+	private void flush(final int stanzas) throws IOException {
+		outputStream.flush();
+		stanzaCount.addAndGet(stanzas);
+		flushCount.incrementAndGet();
+	}
+
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+
+	public double getStanzasPerFlush() {
+		final long flushes = flushCount.get();
+		return flushes == 0 ? 0 : stanzaCount.get() / (double) flushes;
+	}
+
+	public double getBytesPerFlush() {
+		final long flushes = flushCount.get();
+		final CountingOutputStream counter = this.countingOutputStream;
+		final long bytes = bytesFlushed + (counter == null ? 0 : counter.getCount());
+		return flushes == 0 ? 0 : bytes / (double) flushes;
+	}
+
 	public TagWriter writeStanzaAsync(AbstractStanza stanza) {
 		if (finished) {
 			Log.d(Config.LOGTAG,"attempting to write stanza to finished TagWriter");
@@ -124,4 +170,32 @@ public class TagWriter {
 		}
 		outputStream = null;
 	}
+
+	/**
+	 * Reusable serialization scratch space. Elements are appended to a single builder and handed
+	 * to the writer as a char array instead of creating a string per stanza.
+	 */
+	private static final class SerializationBuffer {
+
+		private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+		private StringBuilder builder = new StringBuilder(1024);
+		private char[] chars = new char[1024];
+
+		int write(final Element element, final Writer writer) throws IOException {
+			builder.setLength(0);
+			element.appendTo(builder);
+			final int length = builder.length();
+			if (chars.length < length) {
+				chars = new char[Math.max(length, chars.length * 2)];
+			}
+			builder.getChars(0, length, chars, 0);
+			writer.write(chars, 0, length);
+			if (length > MAX_RETAINED_CAPACITY) {
+				builder = new StringBuilder(1024);
+				chars = new char[1024];
+			}
+			return length;
+		}
+	}
 }
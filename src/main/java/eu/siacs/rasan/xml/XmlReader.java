@@ -61,14 +61,7 @@ public class XmlReader implements Closeable {
 					Tag tag = Tag.start(parser.getName());
 					final String xmlns = parser.getNamespace();
 					for (int i = 0; i < parser.getAttributeCount(); ++i) {
-						final String prefix = parser.getAttributePrefix(i);
-						String name;
-						if (prefix != null && !prefix.isEmpty()) {
-							name = prefix+":"+parser.getAttributeName(i);
-						} else {
-							name = parser.getAttributeName(i);
-						}
-						tag.setAttribute(name,parser.getAttributeValue(i));
+						tag.setAttribute(getAttributeName(i), parser.getAttributeValue(i));
 					}
 					if (xmlns != null) {
 						tag.setAttribute("xmlns", xmlns);
@@ -88,29 +81,62 @@ public class XmlReader implements Closeable {
 	}
 
 	public Element readElement(Tag currentTag) throws IOException {
-		Element element = new Element(currentTag.getName());
+		return readElement(currentTag, new Element(currentTag.getName()));
+	}
+
+	/**
+	 * Reads the remainder of the element that was opened by currentTag into the given element.
+	 * Children are assembled directly from parser events without creating intermediate tags.
+	 */
+	public <T extends Element> T readElement(final Tag currentTag, final T element) throws IOException {
 		element.setAttributes(currentTag.getAttributes());
-		Tag nextTag = this.readTag();
-		if (nextTag == null) {
-			throw new IOException("interrupted mid tag");
+		try {
+			readChildren(element);
+		} catch (final IOException e) {
+			throw e;
+		} catch (final Throwable throwable) {
+			throw new IOException("xml parser mishandled "+throwable.getClass().getSimpleName()+"("+throwable.getMessage()+")", throwable);
 		}
-		if (nextTag.isNo()) {
-			element.setContent(nextTag.getName());
-			nextTag = this.readTag();
-			if (nextTag == null) {
-				throw new IOException("interrupted mid tag");
+		return element;
+	}
+
+	private void readChildren(final Element element) throws IOException, XmlPullParserException {
+		boolean first = true;
+		while (this.is != null) {
+			switch (parser.next()) {
+				case XmlPullParser.START_TAG:
+					final Element child = new Element(parser.getName());
+					final String xmlns = parser.getNamespace();
+					for (int i = 0; i < parser.getAttributeCount(); ++i) {
+						child.setAttribute(getAttributeName(i), parser.getAttributeValue(i));
+					}
+					if (xmlns != null) {
+						child.setAttribute("xmlns", xmlns);
+					}
+					element.addChild(child);
+					readChildren(child);
+					break;
+				case XmlPullParser.END_TAG:
+					return;
+				case XmlPullParser.TEXT:
+					if (first) {
+						element.setContent(parser.getText());
+					}
+					break;
+				case XmlPullParser.END_DOCUMENT:
+					throw new IOException("interrupted mid tag");
 			}
+			first = false;
 		}
-		while (!nextTag.isEnd(element.getName())) {
-			if (!nextTag.isNo()) {
-				Element child = this.readElement(nextTag);
-				element.addChild(child);
-			}
-			nextTag = this.readTag();
-			if (nextTag == null) {
-				throw new IOException("interrupted mid tag");
-			}
+		throw new IOException("interrupted mid tag");
+	}
+
+	private String getAttributeName(final int index) {
+		final String prefix = parser.getAttributePrefix(index);
+		if (prefix != null && !prefix.isEmpty()) {
+			return prefix + ":" + parser.getAttributeName(index);
+		} else {
+			return parser.getAttributeName(index);
 		}
-		return element;
 	}
 }
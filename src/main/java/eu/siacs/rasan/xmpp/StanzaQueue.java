@@ -0,0 +1,116 @@
+package eu.siacs.rasan.xmpp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import eu.siacs.rasan.xmpp.stanzas.AbstractAcknowledgeableStanza;
+
+/**
+ * Outbound stanzas that have not been acknowledged by the server yet (XEP-0198).
+ * <p>
+ * Stanzas are appended with consecutive sequence numbers, which allows them to be kept in a ring
+ * buffer and addressed by offset from the oldest entry. Acknowledging up to a sequence number
+ * truncates from the front without shifting the remaining entries.
+ */
+public class StanzaQueue {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_RETAINED_CAPACITY = 1024;
+
+    private AbstractAcknowledgeableStanza[] stanzas = new AbstractAcknowledgeableStanza[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+    private int firstSequence = 0;
+
+    public synchronized void append(final int sequence, final AbstractAcknowledgeableStanza stanza) {
+        if (size == 0) {
+            firstSequence = sequence;
+        } else if (sequence != firstSequence + size) {
+            throw new IllegalArgumentException("sequence " + sequence + " does not follow " + (firstSequence + size - 1));
+        }
+        if (size == stanzas.length) {
+            resize(stanzas.length * 2);
+        }
+        stanzas[(head + size) & (stanzas.length - 1)] = stanza;
+        ++size;
+    }
+
+    /**
+     * Removes all stanzas with a sequence number less than or equal to the given one.
+     *
+     * @return the removed stanzas in the order they were sent
+     */
+    public synchronized List<AbstractAcknowledgeableStanza> acknowledgeUpTo(final int sequence) {
+        final int count = Math.max(0, Math.min(size, sequence - firstSequence + 1));
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        return remove(count);
+    }
+
+    /**
+     * Removes and returns all stanzas in the order they were sent.
+     */
+    public synchronized List<AbstractAcknowledgeableStanza> drain() {
+        return remove(size);
+    }
+
+    public synchronized List<AbstractAcknowledgeableStanza> getStanzas() {
+        final List<AbstractAcknowledgeableStanza> result = new ArrayList<>(size);
+        final int mask = stanzas.length - 1;
+        for (int i = 0; i < size; ++i) {
+            result.add(stanzas[(head + i) & mask]);
+        }
+        return result;
+    }
+
+    public synchronized void clear() {
+        remove(size);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the sequence number of the most recently appended stanza or -1 if the queue is empty
+     */
+    public synchronized int getLastSequence() {
+        return size == 0 ? -1 : firstSequence + size - 1;
+    }
+
+    private List<AbstractAcknowledgeableStanza> remove(final int count) {
+        final List<AbstractAcknowledgeableStanza> removed = new ArrayList<>(count);
+        final int mask = stanzas.length - 1;
+        for (int i = 0; i < count; ++i) {
+            final int index = (head + i) & mask;
+            removed.add(stanzas[index]);
+            stanzas[index] = null;
+        }
+        head = (head + count) & mask;
+        size -= count;
+        firstSequence += count;
+        if (size == 0) {
+            head = 0;
+            if (stanzas.length > MAX_RETAINED_CAPACITY) {
+                stanzas = new AbstractAcknowledgeableStanza[INITIAL_CAPACITY];
+            }
+        }
+        return removed;
+    }
+
+    private void resize(final int capacity) {
+        final AbstractAcknowledgeableStanza[] resized = new AbstractAcknowledgeableStanza[capacity];
+        final int mask = stanzas.length - 1;
+        for (int i = 0; i < size; ++i) {
+            resized[i] = stanzas[(head + i) & mask];
+        }
+        stanzas = resized;
+        head = 0;
+    }
+}
@@ -8,10 +8,11 @@ import android.security.KeyChain;
 import android.util.Base64;
 import android.util.Log;
 import android.util.Pair;
-import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 
+import com.google.common.base.Objects;
+
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.ByteArrayInputStream;
@@ -20,7 +21,6 @@ import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.IDN;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
@@ -36,9 +36,12 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -47,6 +50,7 @@ import java.util.regex.Matcher;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.X509KeyManager;
@@ -74,7 +78,9 @@ import eu.siacs.rasan.services.MemorizingTrustManager;
 import eu.siacs.rasan.services.MessageArchiveService;
 import eu.siacs.rasan.services.NotificationService;
 import eu.siacs.rasan.services.XmppConnectionService;
+import eu.siacs.rasan.utils.ConnectionRacer;
 import eu.siacs.rasan.utils.CryptoHelper;
+import eu.siacs.rasan.utils.KeyedSerialExecutor;
 import eu.siacs.rasan.utils.Patterns;
 import eu.siacs.rasan.utils.Resolver;
 import eu.siacs.rasan.utils.SSLSocketHelper;
@@ -107,6 +113,7 @@ public class XmppConnection implements Runnable {
     private static final int PACKET_IQ = 0;
     private static final int PACKET_MESSAGE = 1;
     private static final int PACKET_PRESENCE = 2;
+    private static final Executor STANZA_HANDLER_EXECUTOR = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
     public final OnIqPacketReceived registrationResponseListener = (account, packet) -> {
         if (packet.getType() == IqPacket.TYPE.RESULT) {
             account.setOption(Account.OPTION_REGISTER, false);
@@ -136,10 +143,11 @@ public class XmppConnection implements Runnable {
     private final Features features = new Features(this);
     private final HashMap<Jid, ServiceDiscoveryResult> disco = new HashMap<>();
     private final HashMap<String, Jid> commands = new HashMap<>();
-    private final SparseArray<AbstractAcknowledgeableStanza> mStanzaQueue = new SparseArray<>();
+    private final StanzaQueue mStanzaQueue = new StanzaQueue();
     private final Hashtable<String, Pair<IqPacket, OnIqPacketReceived>> packetCallbacks = new Hashtable<>();
     private final Set<OnAdvancedStreamFeaturesLoaded> advancedStreamFeaturesLoadedListeners = new HashSet<>();
     private final XmppConnectionService mXmppConnectionService;
+    private final KeyedSerialExecutor stanzaHandlerExecutor;
     private Socket socket;
     private XmlReader tagReader;
     private TagWriter tagWriter = new TagWriter();
@@ -154,6 +162,7 @@ public class XmppConnection implements Runnable {
     private long lastPacketReceived = 0;
     private long lastPingSent = 0;
     private long lastConnect = 0;
+    private long connectStarted = 0;
     private long lastSessionStarted = 0;
     private long lastDiscoStarted = 0;
     private boolean isMamPreferenceAlways = false;
@@ -162,6 +171,10 @@ public class XmppConnection implements Runnable {
     private final AtomicBoolean mWaitingForSmCatchup = new AtomicBoolean(false);
     private final AtomicInteger mSmCatchupMessageCounter = new AtomicInteger(0);
     private boolean mInteractive = false;
+    private SSLContext sslContext = null;
+    private boolean sslContextInteractive = false;
+    private String sslContextPrivateKeyAlias = null;
+    private String sslContextDomain = null;
     private int attempt = 0;
     private OnPresencePacketReceived presenceListener = null;
     private OnJinglePacketReceived jingleListener = null;
@@ -180,6 +193,7 @@ public class XmppConnection implements Runnable {
     public XmppConnection(final Account account, final XmppConnectionService service) {
         this.account = account;
         this.mXmppConnectionService = service;
+        this.stanzaHandlerExecutor = new KeyedSerialExecutor(account.getJid().asBareJid() + " stanza handler", STANZA_HANDLER_EXECUTOR);
     }
 
     private static void fixResource(Context context, Account account) {
@@ -250,6 +264,7 @@ public class XmppConnection implements Runnable {
     }
 
     protected void connect() {
+        this.connectStarted = SystemClock.elapsedRealtime();
         if (mXmppConnectionService.areMessagesInitialized()) {
             mXmppConnectionService.resetSendingToWaiting(account);
         }
@@ -320,32 +335,23 @@ public class XmppConnection implements Runnable {
                         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": loaded backup resolver result from db: " + storedBackupResult);
                     }
                 }
-                for (Iterator<Resolver.Result> iterator = results.iterator(); iterator.hasNext(); ) {
-                    final Resolver.Result result = iterator.next();
+                final List<Resolver.Result> candidates = ConnectionRacer.rank(results);
+                while (true) {
                     if (Thread.currentThread().isInterrupted()) {
                         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": Thread was interrupted");
                         return;
                     }
                     try {
+                        final ConnectionRacer.Connection connection = ConnectionRacer.race(candidates, Config.CONNECTION_ATTEMPT_DELAY, Config.SOCKET_TIMEOUT * 1000);
+                        final Resolver.Result result = connection.result;
                         // if tls is true, encryption is implied and must not be started
                         features.encryptionEnabled = result.isDirectTls();
                         verifiedHostname = result.isAuthenticated() ? result.getHostname().toString() : null;
                         Log.d(Config.LOGTAG, "verified hostname " + verifiedHostname);
-                        final InetSocketAddress addr;
-                        if (result.getIp() != null) {
-                            addr = new InetSocketAddress(result.getIp(), result.getPort());
-                            Log.d(Config.LOGTAG, account.getJid().asBareJid().toString()
-                                    + ": using values from resolver " + (result.getHostname() == null ? "" : result.getHostname().toString()
-                                    + "/") + result.getIp().getHostAddress() + ":" + result.getPort() + " tls: " + features.encryptionEnabled);
-                        } else {
-                            addr = new InetSocketAddress(IDN.toASCII(result.getHostname().toString()), result.getPort());
-                            Log.d(Config.LOGTAG, account.getJid().asBareJid().toString()
-                                    + ": using values from resolver "
-                                    + result.getHostname().toString() + ":" + result.getPort() + " tls: " + features.encryptionEnabled);
-                        }
-
-                        localSocket = new Socket();
-                        localSocket.connect(addr, Config.SOCKET_TIMEOUT * 1000);
+                        Log.d(Config.LOGTAG, account.getJid().asBareJid().toString()
+                                + ": using values from resolver " + (result.getHostname() == null ? "" : result.getHostname().toString()
+                                + "/") + (result.getIp() == null ? "" : result.getIp().getHostAddress()) + ":" + result.getPort() + " tls: " + features.encryptionEnabled);
+                        localSocket = connection.socket;
 
                         if (features.encryptionEnabled) {
                             localSocket = upgradeSocketToTls(localSocket);
@@ -363,7 +369,7 @@ public class XmppConnection implements Runnable {
                             throw new StateChangingException(Account.State.STREAM_OPENING_ERROR);
                         }
                     } catch (final StateChangingException e) {
-                        if (!iterator.hasNext()) {
+                        if (candidates.isEmpty()) {
                             throw e;
                         }
                     } catch (InterruptedException e) {
@@ -371,7 +377,7 @@ public class XmppConnection implements Runnable {
                         return;
                     } catch (final Throwable e) {
                         Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": " + e.getMessage() + "(" + e.getClass().getName() + ")");
-                        if (!iterator.hasNext()) {
+                        if (candidates.isEmpty()) {
                             throw new UnknownHostException();
                         }
                     }
@@ -428,7 +434,20 @@ public class XmppConnection implements Runnable {
         return tag != null && tag.isStart("stream");
     }
 
-    private SSLSocketFactory getSSLSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
+    /**
+     * The SSL context is kept for as long as the domain and interactivity of the trust manager and
+     * the client certificate don't change. Its client session cache allows TLS sessions to be resumed on
+     * reconnect, which saves a full handshake.
+     */
+    private synchronized SSLSocketFactory getSSLSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
+        final String privateKeyAlias = account.getPrivateKeyAlias();
+        final String domain = account.getServer();
+        if (this.sslContext != null
+                && this.sslContextInteractive == mInteractive
+                && Objects.equal(this.sslContextPrivateKeyAlias, privateKeyAlias)
+                && Objects.equal(this.sslContextDomain, domain)) {
+            return this.sslContext.getSocketFactory();
+        }
         final SSLContext sc = SSLSocketHelper.getSSLContext();
         final MemorizingTrustManager trustManager = this.mXmppConnectionService.getMemorizingTrustManager();
         final KeyManager[] keyManager;
@@ -437,8 +456,11 @@ public class XmppConnection implements Runnable {
         } else {
             keyManager = null;
         }
-        final String domain = account.getServer();
         sc.init(keyManager, new X509TrustManager[]{mInteractive ? trustManager.getInteractive(domain) : trustManager.getNonInteractive(domain)}, mXmppConnectionService.getRNG());
+        this.sslContext = sc;
+        this.sslContextInteractive = mInteractive;
+        this.sslContextPrivateKeyAlias = privateKeyAlias;
+        this.sslContextDomain = domain;
         return sc.getSocketFactory();
     }
 
@@ -477,6 +499,9 @@ public class XmppConnection implements Runnable {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": logged in");
                 account.setKey(Account.PINNED_MECHANISM_KEY,
                         String.valueOf(saslMechanism.getPriority()));
+                if (saslMechanism.hasUpdatedAccountKeys()) {
+                    mXmppConnectionService.databaseBackend.updateAccount(account);
+                }
                 tagReader.reset();
                 sendStartStream();
                 final Tag tag = tagReader.readTag();
@@ -539,13 +564,14 @@ public class XmppConnection implements Runnable {
             } else if (nextTag.isStart("resumed")) {
                 this.inSmacksSession = true;
                 this.isBound = true;
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": resumed " + (SystemClock.elapsedRealtime() - connectStarted) + "ms after connecting");
                 this.tagWriter.writeStanzaAsync(new RequestPacket(smVersion));
                 lastPacketReceived = SystemClock.elapsedRealtime();
                 final Element resumed = tagReader.readElement(nextTag);
                 final String h = resumed.getAttribute("h");
                 try {
-                    ArrayList<AbstractAcknowledgeableStanza> failedStanzas = new ArrayList<>();
-                    final boolean acknowledgedMessages;
+                    final List<AbstractAcknowledgeableStanza> acknowledgedStanzas;
+                    final List<AbstractAcknowledgeableStanza> failedStanzas;
                     synchronized (this.mStanzaQueue) {
                         final int serverCount = Integer.parseInt(h);
                         if (serverCount < stanzasSent) {
@@ -555,13 +581,10 @@ public class XmppConnection implements Runnable {
                         } else {
                             Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": session resumed");
                         }
-                        acknowledgedMessages = acknowledgeStanzaUpTo(serverCount);
-                        for (int i = 0; i < this.mStanzaQueue.size(); ++i) {
-                            failedStanzas.add(mStanzaQueue.valueAt(i));
-                        }
-                        mStanzaQueue.clear();
+                        acknowledgedStanzas = removeAcknowledgedStanzas(serverCount);
+                        failedStanzas = mStanzaQueue.drain();
                     }
-                    if (acknowledgedMessages) {
+                    if (notifyAcknowledged(acknowledgedStanzas)) {
                         mXmppConnectionService.updateConversationUi();
                     }
                     Log.d(Config.LOGTAG, "resending " + failedStanzas.size() + " stanzas");
@@ -581,12 +604,18 @@ public class XmppConnection implements Runnable {
                 changeStatus(Account.State.ONLINE);
             } else if (nextTag.isStart("r")) {
                 tagReader.readElement(nextTag);
+                awaitStanzaHandlers();
+                //never acknowledge messages that have not been persisted yet
+                mXmppConnectionService.databaseBackend.flushPendingMessages();
                 if (Config.EXTENDED_SM_LOGGING) {
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": acknowledging stanza #" + this.stanzasReceived);
                 }
                 final AckPacket ack = new AckPacket(this.stanzasReceived, smVersion);
                 tagWriter.writeStanzaAsync(ack);
             } else if (nextTag.isStart("a")) {
+                if (mWaitingForSmCatchup.get()) {
+                    awaitStanzaHandlers();
+                }
                 boolean accountUiNeedsRefresh = false;
                 synchronized (NotificationService.CATCHUP_LOCK) {
                     if (mWaitingForSmCatchup.compareAndSet(true, false)) {
@@ -605,12 +634,12 @@ public class XmppConnection implements Runnable {
                 final Element ack = tagReader.readElement(nextTag);
                 lastPacketReceived = SystemClock.elapsedRealtime();
                 try {
-                    final boolean acknowledgedMessages;
+                    final int serverSequence = Integer.parseInt(ack.getAttribute("h"));
+                    final List<AbstractAcknowledgeableStanza> acknowledgedStanzas;
                     synchronized (this.mStanzaQueue) {
-                        final int serverSequence = Integer.parseInt(ack.getAttribute("h"));
-                        acknowledgedMessages = acknowledgeStanzaUpTo(serverSequence);
+                        acknowledgedStanzas = removeAcknowledgedStanzas(serverSequence);
                     }
-                    if (acknowledgedMessages) {
+                    if (notifyAcknowledged(acknowledgedStanzas)) {
                         mXmppConnectionService.updateConversationUi();
                     }
                 } catch (NumberFormatException | NullPointerException e) {
@@ -621,11 +650,11 @@ public class XmppConnection implements Runnable {
                 try {
                     final int serverCount = Integer.parseInt(failed.getAttribute("h"));
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": resumption failed but server acknowledged stanza #" + serverCount);
-                    final boolean acknowledgedMessages;
+                    final List<AbstractAcknowledgeableStanza> acknowledgedStanzas;
                     synchronized (this.mStanzaQueue) {
-                        acknowledgedMessages = acknowledgeStanzaUpTo(serverCount);
+                        acknowledgedStanzas = removeAcknowledgedStanzas(serverCount);
                     }
-                    if (acknowledgedMessages) {
+                    if (notifyAcknowledged(acknowledgedStanzas)) {
                         mXmppConnectionService.updateConversationUi();
                     }
                 } catch (NumberFormatException | NullPointerException e) {
@@ -647,27 +676,32 @@ public class XmppConnection implements Runnable {
         }
     }
 
-    private boolean acknowledgeStanzaUpTo(int serverCount) {
+    /**
+     * Removes the stanzas covered by the servers ack from the queue. Must be called while holding
+     * the mStanzaQueue lock. Listeners are notified separately via {@link #notifyAcknowledged(List)}
+     * so that senders are not blocked while they run.
+     */
+    private List<AbstractAcknowledgeableStanza> removeAcknowledgedStanzas(final int serverCount) {
         if (serverCount > stanzasSent) {
             Log.e(Config.LOGTAG, "server acknowledged more stanzas than we sent. serverCount=" + serverCount + ", ourCount=" + stanzasSent);
         }
+        final List<AbstractAcknowledgeableStanza> acknowledged = mStanzaQueue.acknowledgeUpTo(serverCount);
+        if (Config.EXTENDED_SM_LOGGING && acknowledged.size() > 0) {
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": server acknowledged " + acknowledged.size() + " stanza(s) up to #" + serverCount);
+        }
+        return acknowledged;
+    }
+
+    private boolean notifyAcknowledged(final List<AbstractAcknowledgeableStanza> stanzas) {
         boolean acknowledgedMessages = false;
-        for (int i = 0; i < mStanzaQueue.size(); ++i) {
-            if (serverCount >= mStanzaQueue.keyAt(i)) {
-                if (Config.EXTENDED_SM_LOGGING) {
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": server acknowledged stanza #" + mStanzaQueue.keyAt(i));
-                }
-                final AbstractAcknowledgeableStanza stanza = mStanzaQueue.valueAt(i);
-                if (stanza instanceof MessagePacket && acknowledgedListener != null) {
-                    final MessagePacket packet = (MessagePacket) stanza;
-                    final String id = packet.getId();
-                    final Jid to = packet.getTo();
-                    if (id != null && to != null) {
-                        acknowledgedMessages |= acknowledgedListener.onMessageAcknowledged(account, to, id);
-                    }
+        for (final AbstractAcknowledgeableStanza stanza : stanzas) {
+            if (stanza instanceof MessagePacket && acknowledgedListener != null) {
+                final MessagePacket packet = (MessagePacket) stanza;
+                final String id = packet.getId();
+                final Jid to = packet.getTo();
+                if (id != null && to != null) {
+                    acknowledgedMessages |= acknowledgedListener.onMessageAcknowledged(account, to, id);
                 }
-                mStanzaQueue.removeAt(i);
-                i--;
             }
         }
         return acknowledgedMessages;
@@ -689,20 +723,7 @@ public class XmppConnection implements Runnable {
             default:
                 throw new AssertionError("Should never encounter invalid type");
         }
-        element.setAttributes(currentTag.getAttributes());
-        Tag nextTag = tagReader.readTag();
-        if (nextTag == null) {
-            throw new IOException("interrupted mid tag");
-        }
-        while (!nextTag.isEnd(element.getName())) {
-            if (!nextTag.isNo()) {
-                element.addChild(tagReader.readElement(nextTag));
-            }
-            nextTag = tagReader.readTag();
-            if (nextTag == null) {
-                throw new IOException("interrupted mid tag");
-            }
-        }
+        tagReader.readElement(currentTag, element);
         if (stanzasReceived == Integer.MAX_VALUE) {
             resetStreamId();
             throw new IOException("time to restart the session. cant handle >2 billion pcks");
@@ -731,6 +752,13 @@ public class XmppConnection implements Runnable {
             Log.e(Config.LOGTAG, "encountered invalid iq from='" + packet.getFrom() + "' to='" + packet.getTo() + "'");
             return;
         }
+        if (isBound) {
+            if (completesArchiveQuery(packet)) {
+                awaitStanzaHandlers();
+            } else {
+                awaitStanzaHandlers(getDispatchKey(packet));
+            }
+        }
         if (packet instanceof JinglePacket) {
             if (this.jingleListener != null) {
                 this.jingleListener.onJinglePacketReceived(account, (JinglePacket) packet);
@@ -776,7 +804,10 @@ public class XmppConnection implements Runnable {
             Log.e(Config.LOGTAG, "encountered invalid message from='" + packet.getFrom() + "' to='" + packet.getTo() + "'");
             return;
         }
-        this.messageListener.onMessagePacketReceived(account, packet);
+        if (isBound && completesArchiveQuery(packet)) {
+            awaitStanzaHandlers();
+        }
+        dispatch(getDispatchKey(packet), () -> this.messageListener.onMessagePacketReceived(account, packet));
     }
 
     private void processPresence(final Tag currentTag) throws IOException {
@@ -785,7 +816,92 @@ public class XmppConnection implements Runnable {
             Log.e(Config.LOGTAG, "encountered invalid presence from='" + packet.getFrom() + "' to='" + packet.getTo() + "'");
             return;
         }
-        this.presenceListener.onPresencePacketReceived(account, packet);
+        dispatch(getDispatchKey(packet), () -> this.presenceListener.onPresencePacketReceived(account, packet));
+    }
+
+    /**
+     * Message and presence handlers run on a shared pool once the stream is bound. Handlers for
+     * stanzas with the same dispatch key run in the order the stanzas were received.
+     */
+    private void dispatch(final Jid key, final Runnable handler) {
+        if (isBound) {
+            stanzaHandlerExecutor.execute(key, handler);
+        } else {
+            handler.run();
+        }
+    }
+
+    private void awaitStanzaHandlers(final Jid key) throws IOException {
+        try {
+            stanzaHandlerExecutor.awaitIdle(key);
+        } catch (final InterruptedException e) {
+            throw new IOException("interrupted while waiting for stanza handlers", e);
+        }
+    }
+
+    private void awaitStanzaHandlers() throws IOException {
+        try {
+            stanzaHandlerExecutor.awaitIdle();
+        } catch (final InterruptedException e) {
+            throw new IOException("interrupted while waiting for stanza handlers", e);
+        }
+    }
+
+    /**
+     * Results from the account's own archive are dispatched by conversation. The fin that ends a
+     * query, either as iq result or as legacy message, has to wait for all of them to be handled
+     * before the query is finalized.
+     */
+    private static boolean completesArchiveQuery(final AbstractStanza packet) {
+        if (packet instanceof IqPacket && ((IqPacket) packet).getType() != IqPacket.TYPE.RESULT) {
+            return false;
+        }
+        for (final Element child : packet.getChildren()) {
+            final String namespace = child.getNamespace();
+            if ("fin".equals(child.getName()) && namespace != null && namespace.startsWith("urn:xmpp:mam:")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stanzas are serialized per remote bare jid. Carbon copies and results from the account's own
+     * archive are attributed to the conversation they belong to so that they are ordered with the
+     * live messages exchanged with that contact.
+     */
+    private Jid getDispatchKey(final AbstractStanza packet) {
+        final Jid from = packet.getFrom();
+        final Jid accountJid = account.getJid().asBareJid();
+        final Jid key = from == null ? accountJid : from.asBareJid();
+        if (packet instanceof MessagePacket && key.equals(accountJid)) {
+            for (final Element child : packet.getChildren()) {
+                final String namespace = child.getNamespace();
+                final boolean carbon = "urn:xmpp:carbons:2".equals(namespace);
+                final boolean archived = "result".equals(child.getName()) && namespace != null && namespace.startsWith("urn:xmpp:mam:");
+                if (!carbon && !archived) {
+                    continue;
+                }
+                final Element forwarded = child.findChild("forwarded", "urn:xmpp:forward:0");
+                final Element message = forwarded == null ? null : forwarded.findChild("message");
+                if (message == null) {
+                    break;
+                }
+                final boolean sent;
+                if (carbon) {
+                    sent = "sent".equals(child.getName());
+                } else {
+                    final Jid messageFrom = message.getAttributeAsJid("from");
+                    sent = messageFrom == null || messageFrom.asBareJid().equals(accountJid);
+                }
+                final Jid counterpart = message.getAttributeAsJid(sent ? "to" : "from");
+                if (counterpart != null && InvalidJid.isValid(counterpart)) {
+                    return counterpart.asBareJid();
+                }
+                break;
+            }
+        }
+        return key;
     }
 
     private void sendStartTLS() throws IOException {
@@ -821,13 +937,16 @@ public class XmppConnection implements Runnable {
             throw new StateChangingException(Account.State.TLS_ERROR);
         }
         final InetAddress address = socket.getInetAddress();
+        final long start = System.currentTimeMillis();
         final SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, address.getHostAddress(), socket.getPort(), true);
         SSLSocketHelper.setSecurity(sslSocket);
         SSLSocketHelper.setHostname(sslSocket, IDN.toASCII(account.getServer()));
         SSLSocketHelper.setApplicationProtocol(sslSocket, "xmpp-client");
         final XmppDomainVerifier xmppDomainVerifier = new XmppDomainVerifier();
         try {
-            if (!xmppDomainVerifier.verify(account.getServer(), this.verifiedHostname, sslSocket.getSession())) {
+            final SSLSession session = sslSocket.getSession();
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": TLS handshake took " + (System.currentTimeMillis() - start) + "ms (resumed=" + (session.getCreationTime() < start) + ")");
+            if (!xmppDomainVerifier.verify(account.getServer(), this.verifiedHostname, session)) {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": TLS certificate domain verification failed");
                 FileBackend.close(sslSocket);
                 throw new StateChangingException(Account.State.TLS_ERROR_DOMAIN);
@@ -1072,6 +1191,7 @@ public class XmppConnection implements Runnable {
             final Element bind = packet.findChild("bind");
             if (bind != null && packet.getType() == IqPacket.TYPE.RESULT) {
                 isBound = true;
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": bound " + (SystemClock.elapsedRealtime() - connectStarted) + "ms after connecting");
                 final Element jid = bind.findChild("jid");
                 if (jid != null && jid.getContent() != null) {
                     try {
@@ -1397,19 +1517,16 @@ public class XmppConnection implements Runnable {
     }
 
     private void failPendingMessages(final String error) {
-        synchronized (this.mStanzaQueue) {
-            for (int i = 0; i < mStanzaQueue.size(); ++i) {
-                final AbstractAcknowledgeableStanza stanza = mStanzaQueue.valueAt(i);
-                if (stanza instanceof MessagePacket) {
-                    final MessagePacket packet = (MessagePacket) stanza;
-                    final String id = packet.getId();
-                    final Jid to = packet.getTo();
-                    mXmppConnectionService.markMessage(account,
-                            to.asBareJid(),
-                            id,
-                            Message.STATUS_SEND_FAILED,
-                            error);
-                }
+        for (final AbstractAcknowledgeableStanza stanza : mStanzaQueue.getStanzas()) {
+            if (stanza instanceof MessagePacket) {
+                final MessagePacket packet = (MessagePacket) stanza;
+                final String id = packet.getId();
+                final Jid to = packet.getTo();
+                mXmppConnectionService.markMessage(account,
+                        to.asBareJid(),
+                        id,
+                        Message.STATUS_SEND_FAILED,
+                        error);
             }
         }
     }
@@ -1481,11 +1598,8 @@ public class XmppConnection implements Runnable {
             if (packet instanceof AbstractAcknowledgeableStanza) {
                 AbstractAcknowledgeableStanza stanza = (AbstractAcknowledgeableStanza) packet;
 
-                if (this.mStanzaQueue.size() != 0) {
-                    int currentHighestKey = this.mStanzaQueue.keyAt(this.mStanzaQueue.size() - 1);
-                    if (currentHighestKey != stanzasSent) {
-                        throw new AssertionError("Stanza count messed up");
-                    }
+                if (!this.mStanzaQueue.isEmpty() && this.mStanzaQueue.getLastSequence() != stanzasSent) {
+                    throw new AssertionError("Stanza count messed up");
                 }
 
                 ++stanzasSent;
@@ -1560,6 +1674,12 @@ public class XmppConnection implements Runnable {
     public void disconnect(final boolean force) {
         interrupt();
         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": disconnecting force=" + force);
+        final TagWriter writer = this.tagWriter;
+        if (writer.getFlushCount() > 0) {
+            Log.d(Config.LOGTAG, String.format(Locale.ENGLISH, "%s: %d flushes (%.1f stanzas, %.0f bytes per flush)", account.getJid().asBareJid(), writer.getFlushCount(), writer.getStanzasPerFlush(), writer.getBytesPerFlush()));
+        }
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": stanza handlers queue depth=" + stanzaHandlerExecutor.getQueueDepth() + " (max " + stanzaHandlerExecutor.getMaxQueueDepth() + "), latency avg=" + stanzaHandlerExecutor.getAverageLatency() + "ms max=" + stanzaHandlerExecutor.getMaxLatency() + "ms");
+        mXmppConnectionService.databaseBackend.flushPendingMessages();
         if (force) {
             forceCloseSocket();
         } else {
@@ -11,6 +11,7 @@ import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.HashMap;
 
 import eu.siacs.rasan.Config;
 import eu.siacs.rasan.entities.Account;
@@ -19,15 +20,18 @@ import eu.siacs.rasan.persistance.FileBackend;
 import eu.siacs.rasan.services.AbstractConnectionManager;
 import eu.siacs.rasan.xml.Element;
 import eu.siacs.rasan.xmpp.Jid;
-import eu.siacs.rasan.xmpp.OnIqPacketReceived;
 import eu.siacs.rasan.xmpp.stanzas.IqPacket;
 
 public class JingleInBandTransport extends JingleTransport {
 
+    private static final int SEQ_MASK = 0xFFFF; // seq is an unsigned short and wraps around
+    private static final int MAX_OUT_OF_ORDER_BLOCKS = 64;
+
     private final Account account;
     private final Jid counterpart;
     private final int blockSize;
     private int seq = 0;
+    private int expectedSeq = 0;
     private final String sessionId;
 
     private boolean established = false;
@@ -42,25 +46,18 @@ public class JingleInBandTransport extends JingleTransport {
     private OutputStream fileOutputStream = null;
     private long remainingSize = 0;
     private long fileSize = 0;
+    private long acknowledgedSize = 0;
     private MessageDigest digest;
+    private byte[] buffer;
+    private boolean endOfFile = false;
+    private boolean transmitted = false;
 
-    private OnFileTransmissionStatusChanged onFileTransmissionStatusChanged;
+    // blocks that have been sent but not acknowledged yet, by seq
+    private final HashMap<Integer, Integer> blocksInFlight = new HashMap<>();
+    // blocks that have been received ahead of a missing one, by seq
+    private final HashMap<Integer, String> outOfOrderBlocks = new HashMap<>();
 
-    private final OnIqPacketReceived onAckReceived = new OnIqPacketReceived() {
-        @Override
-        public void onIqPacketReceived(Account account, IqPacket packet) {
-            if (!connected) {
-                return;
-            }
-            if (packet.getType() == IqPacket.TYPE.RESULT) {
-                if (remainingSize > 0) {
-                    sendNextBlock();
-                }
-            } else if (packet.getType() == IqPacket.TYPE.ERROR) {
-                onFileTransmissionStatusChanged.onFileTransferAborted();
-            }
-        }
-    };
+    private OnFileTransmissionStatusChanged onFileTransmissionStatusChanged;
 
     JingleInBandTransport(final JingleFileTransferConnection connection, final String sid, final int blockSize) {
         this.connection = connection;
@@ -136,9 +133,8 @@ public class JingleInBandTransport extends JingleTransport {
                 return;
             }
             innerInputStream = AbstractConnectionManager.upgrade(file, fileInputStream);
-            if (this.connected) {
-                this.sendNextBlock();
-            }
+            this.buffer = new byte[this.blockSize];
+            fillWindow();
         } catch (Exception e) {
             callback.onFileTransferAborted();
             Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": " + e.getMessage());
@@ -152,47 +148,119 @@ public class JingleInBandTransport extends JingleTransport {
         FileBackend.close(fileInputStream);
     }
 
-    private void sendNextBlock() {
-        byte[] buffer = new byte[this.blockSize];
-        try {
-            int count = innerInputStream.read(buffer);
-            if (count == -1) {
-                sendClose();
-                file.setSha1Sum(digest.digest());
-                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": sendNextBlock() count was -1");
-                this.onFileTransmissionStatusChanged.onFileTransmitted(file);
-                fileInputStream.close();
+    /**
+     * Sends blocks until {@link Config#IBB_WINDOW_SIZE} of them are waiting for their
+     * acknowledgement. The transfer is complete once the last block has been acknowledged.
+     */
+    private synchronized void fillWindow() {
+        if (!connected || transmitted) {
+            return;
+        }
+        while (!endOfFile && blocksInFlight.size() < Config.IBB_WINDOW_SIZE) {
+            if (!sendNextBlock()) {
                 return;
-            } else if (count != buffer.length) {
-                int rem = innerInputStream.read(buffer, count, buffer.length - count);
-                if (rem > 0) {
-                    count += rem;
+            }
+        }
+        if (endOfFile && blocksInFlight.isEmpty()) {
+            transmitted = true;
+            file.setSha1Sum(digest.digest());
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": all ibb blocks have been acknowledged");
+            sendClose();
+            this.onFileTransmissionStatusChanged.onFileTransmitted(file);
+            FileBackend.close(fileInputStream);
+        }
+    }
+
+    private boolean sendNextBlock() {
+        try {
+            int count = 0;
+            while (count < buffer.length) {
+                final int read = innerInputStream.read(buffer, count, buffer.length - count);
+                if (read == -1) {
+                    endOfFile = true;
+                    break;
                 }
+                count += read;
+            }
+            if (count == 0) {
+                return true;
             }
             this.remainingSize -= count;
+            if (this.remainingSize <= 0) {
+                endOfFile = true;
+            }
             this.digest.update(buffer, 0, count);
-            String base64 = Base64.encodeToString(buffer, 0, count, Base64.NO_WRAP);
+            final int seq = this.seq;
             IqPacket iq = new IqPacket(IqPacket.TYPE.SET);
             iq.setTo(this.counterpart);
             Element data = iq.addChild("data", "http://jabber.org/protocol/ibb");
-            data.setAttribute("seq", Integer.toString(this.seq));
+            data.setAttribute("seq", Integer.toString(seq));
             data.setAttribute("block-size", Integer.toString(this.blockSize));
             data.setAttribute("sid", this.sessionId);
-            data.setContent(base64);
-            this.account.getXmppConnection().sendIqPacket(iq, this.onAckReceived);
+            data.setContent(Base64.encodeToString(buffer, 0, count, Base64.NO_WRAP));
+            this.blocksInFlight.put(seq, count);
+            this.seq = (seq + 1) & SEQ_MASK;
+            this.account.getXmppConnection().sendIqPacket(iq, (account, packet) -> onAckReceived(seq, packet));
             this.account.getXmppConnection().r(); //don't fill up stanza queue too much
-            this.seq++;
-            connection.updateProgress((int) ((((double) (this.fileSize - this.remainingSize)) / this.fileSize) * 100));
-            if (this.remainingSize <= 0) {
-                file.setSha1Sum(digest.digest());
-                this.onFileTransmissionStatusChanged.onFileTransmitted(file);
-                sendClose();
-                fileInputStream.close();
-            }
+            return true;
         } catch (IOException e) {
             Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": io exception during sendNextBlock() " + e.getMessage());
-            FileBackend.close(fileInputStream);
-            this.onFileTransmissionStatusChanged.onFileTransferAborted();
+            abortSending();
+            return false;
+        }
+    }
+
+    private synchronized void onAckReceived(final int seq, final IqPacket packet) {
+        if (!connected || transmitted) {
+            return;
+        }
+        final Integer count = blocksInFlight.remove(seq);
+        if (packet.getType() == IqPacket.TYPE.RESULT) {
+            if (count != null) {
+                acknowledgedSize += count;
+                connection.updateProgress((int) ((((double) acknowledgedSize) / this.fileSize) * 100));
+            }
+            fillWindow();
+        } else if (packet.getType() == IqPacket.TYPE.ERROR) {
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": ibb block " + seq + " was rejected");
+            abortSending();
+        }
+    }
+
+    private void abortSending() {
+        this.connected = false;
+        this.blocksInFlight.clear();
+        FileBackend.close(fileInputStream);
+        this.onFileTransmissionStatusChanged.onFileTransferAborted();
+    }
+
+    /**
+     * Writes the block with the given seq or, if blocks before it are still missing, holds it back
+     * until they arrive.
+     *
+     * @return false if too many blocks are held back
+     */
+    private boolean receiveBlock(final int seq, final String data) {
+        final int distance = (seq - expectedSeq) & SEQ_MASK;
+        if (distance == 0) {
+            receiveNextBlock(data);
+            expectedSeq = (expectedSeq + 1) & SEQ_MASK;
+            String next;
+            while ((next = outOfOrderBlocks.remove(expectedSeq)) != null) {
+                receiveNextBlock(next);
+                expectedSeq = (expectedSeq + 1) & SEQ_MASK;
+            }
+            return true;
+        } else if (distance <= SEQ_MASK / 2) {
+            if (outOfOrderBlocks.size() >= MAX_OUT_OF_ORDER_BLOCKS) {
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": too many ibb blocks ahead of " + expectedSeq);
+                return false;
+            }
+            outOfOrderBlocks.put(seq, data);
+            return true;
+        } else {
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": ignoring duplicate ibb block " + seq);
+            return true;
         }
     }
 
@@ -230,7 +298,7 @@ public class JingleInBandTransport extends JingleTransport {
         }
     }
 
-    void deliverPayload(IqPacket packet, Element payload) {
+    synchronized void deliverPayload(IqPacket packet, Element payload) {
         if (payload.getName().equals("open")) {
             if (!established) {
                 established = true;
@@ -243,9 +311,17 @@ public class JingleInBandTransport extends JingleTransport {
                         packet.generateResponse(IqPacket.TYPE.ERROR), null);
             }
         } else if (connected && payload.getName().equals("data")) {
-            this.receiveNextBlock(payload.getContent());
+            final int seq;
+            try {
+                seq = Integer.parseInt(payload.getAttribute("seq")) & SEQ_MASK;
+            } catch (final NumberFormatException e) {
+                this.account.getXmppConnection().sendIqPacket(
+                        packet.generateResponse(IqPacket.TYPE.ERROR), null);
+                return;
+            }
+            final boolean accepted = this.receiveBlock(seq, payload.getContent());
             this.account.getXmppConnection().sendIqPacket(
-                    packet.generateResponse(IqPacket.TYPE.RESULT), null);
+                    packet.generateResponse(accepted ? IqPacket.TYPE.RESULT : IqPacket.TYPE.ERROR), null);
         } else if (connected && payload.getName().equals("close")) {
             this.connected = false;
             this.account.getXmppConnection().sendIqPacket(
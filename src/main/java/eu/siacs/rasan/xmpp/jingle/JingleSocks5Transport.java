@@ -204,7 +204,7 @@ public class JingleSocks5Transport extends JingleTransport {
                 final InputStream innerInputStream = AbstractConnectionManager.upgrade(file, fileInputStream);
                 long size = file.getExpectedSize();
                 int count;
-                byte[] buffer = new byte[8192];
+                byte[] buffer = new byte[Config.FILE_TRANSFER_BUFFER_SIZE];
                 while ((count = innerInputStream.read(buffer)) > 0) {
                     outputStream.write(buffer, 0, count);
                     digest.update(buffer, 0, count);
@@ -246,7 +246,7 @@ public class JingleSocks5Transport extends JingleTransport {
                 }
                 double size = file.getExpectedSize();
                 long remainingSize = file.getExpectedSize();
-                byte[] buffer = new byte[8192];
+                byte[] buffer = new byte[Config.FILE_TRANSFER_BUFFER_SIZE];
                 int count;
                 while (remainingSize > 0) {
                     count = inputStream.read(buffer);
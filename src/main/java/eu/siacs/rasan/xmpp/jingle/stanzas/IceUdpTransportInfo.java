@@ -11,13 +11,13 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 
+import eu.siacs.rasan.xml.Attributes;
 import eu.siacs.rasan.xml.Element;
 import eu.siacs.rasan.xml.Namespace;
 import eu.siacs.rasan.xmpp.jingle.SessionDescription;
@@ -78,7 +78,7 @@ public class IceUdpTransportInfo extends GenericTransportInfo {
 
     public IceUdpTransportInfo cloneWrapper() {
         final IceUdpTransportInfo transportInfo = new IceUdpTransportInfo();
-        transportInfo.setAttributes(new Hashtable<>(getAttributes()));
+        transportInfo.setAttributes(new Attributes(getAttributes()));
         return transportInfo;
     }
 
@@ -89,7 +89,7 @@ public class IceUdpTransportInfo extends GenericTransportInfo {
         for (final Element child : getChildren()) {
             if (child.getName().equals("fingerprint") && Namespace.JINGLE_APPS_DTLS.equals(child.getNamespace())) {
                 final Fingerprint fingerprint = new Fingerprint();
-                fingerprint.setAttributes(new Hashtable<>(child.getAttributes()));
+                fingerprint.setAttributes(new Attributes(child.getAttributes()));
                 fingerprint.setContent(child.getContent());
                 fingerprint.setAttribute("setup", setup.toString().toLowerCase(Locale.ROOT));
                 transportInfo.addChild(fingerprint);